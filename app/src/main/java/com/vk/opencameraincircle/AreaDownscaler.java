@@ -0,0 +1,355 @@
+package com.vk.opencameraincircle;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * ARGB像素数组的面积平均缩小，线程安全。每个输出像素是它在原图中覆盖区域的加权平均，
+ * 缩小比例很大时也不会像双线性插值那样产生锯齿和摩尔纹；输出尺寸由调用方精确指定，不要求整数倍。
+ * 先水平后垂直分两遍计算，权重为14位定点数，像素数达到阈值时按行拆分到ForkJoinPool并行执行。
+ * 按输出行分段处理，每段只读入所需的几十行原图，中间结果和输出也只保存一段，段缓冲区在多次调用间复用，
+ * 不需要整张原图或整张中间结果的数组。通道按非预乘值分别平均，适用于不透明的照片
+ */
+public class AreaDownscaler {
+    /**
+     * 按行提供原图，只在调用{@link #scale}的线程中调用
+     */
+    public interface RowSource {
+        /**
+         * @param firstRow 起始行
+         * @param rowCount 行数
+         * @param out      按行紧密排列的ARGB，从下标0开始写入
+         */
+        void readRows(int firstRow, int rowCount, int[] out);
+    }
+
+    /**
+     * 按行接收输出，从上到下依次回调，只在调用{@link #scale}的线程中调用
+     */
+    public interface RowSink {
+        /**
+         * @param firstRow 起始行
+         * @param rowCount 行数
+         * @param rows     按行紧密排列的ARGB，从下标0开始，回调返回后会被复用
+         */
+        void writeRows(int firstRow, int rowCount, int[] rows);
+    }
+
+    /**
+     * 默认的并行阈值，按原图像素数计算
+     */
+    public static final int DEFAULT_PARALLEL_THRESHOLD = 1 << 18;
+    private static final int MIN_ROWS_PER_TASK = 16;
+    /**
+     * 每段大约读入的原图行数
+     */
+    private static final int SOURCE_ROWS_PER_BAND = 128;
+    private static final int WEIGHT_BITS = 14;
+    private static final int WEIGHT_ONE = 1 << WEIGHT_BITS;
+    /**
+     * 水平结果保留的额外精度，垂直累加不超过int范围
+     */
+    private static final int EXTRA_BITS = 8;
+    private static final int HORIZONTAL_SHIFT = WEIGHT_BITS - EXTRA_BITS;
+    private static final int VERTICAL_SHIFT = WEIGHT_BITS + EXTRA_BITS;
+
+    private final ForkJoinPool pool;
+    private final int parallelThreshold;
+    /**
+     * 空闲的段缓冲区，同时调用时其余调用各自分配
+     */
+    private final AtomicReference<Buffers> idleBuffers = new AtomicReference<>();
+
+    /**
+     * 使用公共ForkJoinPool和默认的并行阈值
+     */
+    public AreaDownscaler() {
+        this(ForkJoinPool.commonPool(), DEFAULT_PARALLEL_THRESHOLD);
+    }
+
+    /**
+     * @param pool              并行计算使用的线程池
+     * @param parallelThreshold 原图像素数达到此值时并行计算，{@link Integer#MAX_VALUE}表示总是在调用线程中计算
+     */
+    public AreaDownscaler(ForkJoinPool pool, int parallelThreshold) {
+        if (pool == null) {
+            throw new IllegalArgumentException("pool must not be null");
+        }
+        if (parallelThreshold < 1) {
+            throw new IllegalArgumentException("parallelThreshold must be positive");
+        }
+        this.pool = pool;
+        this.parallelThreshold = parallelThreshold;
+    }
+
+    /**
+     * 缩小到指定尺寸，输出宽高均不能大于原图
+     *
+     * @param src       原图，按行紧密排列的ARGB
+     * @param dst       输出，长度至少为dstWidth * dstHeight
+     */
+    public void scale(final int[] src, final int srcWidth, int srcHeight, final int[] dst, final int dstWidth,
+                      int dstHeight) {
+        checkSizes(srcWidth, srcHeight, dstWidth, dstHeight);
+        if (src.length < srcWidth * srcHeight || dst.length < dstWidth * dstHeight) {
+            throw new IllegalArgumentException("pixel arrays are smaller than the image sizes");
+        }
+        scale(new RowSource() {
+            @Override
+            public void readRows(int firstRow, int rowCount, int[] out) {
+                System.arraycopy(src, firstRow * srcWidth, out, 0, rowCount * srcWidth);
+            }
+        }, srcWidth, srcHeight, new RowSink() {
+            @Override
+            public void writeRows(int firstRow, int rowCount, int[] rows) {
+                System.arraycopy(rows, 0, dst, firstRow * dstWidth, rowCount * dstWidth);
+            }
+        }, dstWidth, dstHeight);
+    }
+
+    /**
+     * 按段缩小到指定尺寸，输出宽高均不能大于原图。相邻两段可能重复读取边界上的一行原图
+     *
+     * @param src 原图
+     * @param dst 输出
+     */
+    public void scale(RowSource src, int srcWidth, int srcHeight, RowSink dst, int dstWidth, int dstHeight) {
+        checkSizes(srcWidth, srcHeight, dstWidth, dstHeight);
+        Weights horizontal = new Weights(srcWidth, dstWidth);
+        Weights vertical = new Weights(srcHeight, dstHeight);
+        boolean parallel = (long) srcWidth * srcHeight >= parallelThreshold;
+        int bandRows = Math.max(1, (int) ((long) SOURCE_ROWS_PER_BAND * dstHeight / srcHeight));
+        Buffers buffers = idleBuffers.getAndSet(null);
+        if (buffers == null) {
+            buffers = new Buffers();
+        }
+        try {
+            for (int bandStart = 0; bandStart < dstHeight; bandStart += bandRows) {
+                int bandEnd = Math.min(dstHeight, bandStart + bandRows);
+                int firstRow = vertical.start[bandStart];
+                int rowCount = vertical.start[bandEnd - 1] + vertical.count[bandEnd - 1] - firstRow;
+                //水平结果每个像素4个通道；并行时每个任务至少MIN_ROWS_PER_TASK行，各用一段累加缓冲区
+                int sumSlices = (bandEnd - bandStart - 1) / MIN_ROWS_PER_TASK + 1;
+                buffers.ensure(srcWidth * rowCount, dstWidth * rowCount * 4, dstWidth * (bandEnd - bandStart),
+                        dstWidth * 4 * sumSlices);
+                src.readRows(firstRow, rowCount, buffers.src);
+                Pass pass = new Pass(buffers.src, srcWidth, firstRow, buffers.temp, buffers.dst, buffers.sum,
+                        dstWidth, bandStart, horizontal, vertical);
+                if (parallel) {
+                    pool.invoke(new RowTask(pass, true, 0, rowCount));
+                    pool.invoke(new RowTask(pass, false, bandStart, bandEnd));
+                } else {
+                    pass.horizontal(0, rowCount);
+                    pass.vertical(bandStart, bandEnd);
+                }
+                dst.writeRows(bandStart, bandEnd - bandStart, buffers.dst);
+            }
+        } finally {
+            idleBuffers.set(buffers);
+        }
+    }
+
+    private static void checkSizes(int srcWidth, int srcHeight, int dstWidth, int dstHeight) {
+        if (srcWidth <= 0 || srcHeight <= 0 || dstWidth <= 0 || dstHeight <= 0
+                || dstWidth > srcWidth || dstHeight > srcHeight) {
+            throw new IllegalArgumentException("cannot downscale " + srcWidth + "x" + srcHeight
+                    + " to " + dstWidth + "x" + dstHeight);
+        }
+    }
+
+    /**
+     * 一段的原图、中间结果和输出，只在不够大时重新分配
+     */
+    private static final class Buffers {
+        int[] src;
+        int[] temp;
+        int[] dst;
+        int[] sum;
+
+        void ensure(int srcSize, int tempSize, int dstSize, int sumSize) {
+            if (src == null || src.length < srcSize) {
+                src = new int[srcSize];
+            }
+            if (temp == null || temp.length < tempSize) {
+                temp = new int[tempSize];
+            }
+            if (dst == null || dst.length < dstSize) {
+                dst = new int[dstSize];
+            }
+            if (sum == null || sum.length < sumSize) {
+                sum = new int[sumSize];
+            }
+        }
+    }
+
+    /**
+     * 一维的面积权重：第i个输出覆盖原图[i * src / dst, (i + 1) * src / dst)，
+     * 与每个原像素的重叠长度按比例换算为定点权重，每个输出的权重之和恰好为{@link #WEIGHT_ONE}
+     */
+    static final class Weights {
+        final int[] start;
+        final int[] count;
+        /**
+         * 第i个输出的权重从offset[i]开始
+         */
+        final int[] offset;
+        final int[] weights;
+
+        Weights(int srcSize, int dstSize) {
+            start = new int[dstSize];
+            count = new int[dstSize];
+            offset = new int[dstSize];
+            //单位为1/dstSize个原像素，区间端点都是整数
+            int maxCount = (srcSize + dstSize - 1) / dstSize + 1;
+            weights = new int[dstSize * maxCount];
+            int position = 0;
+            for (int i = 0; i < dstSize; i++) {
+                long begin = (long) i * srcSize;
+                long end = begin + srcSize;
+                int first = (int) (begin / dstSize);
+                int last = (int) ((end - 1) / dstSize);
+                start[i] = first;
+                count[i] = last - first + 1;
+                offset[i] = position;
+                int sum = 0;
+                int largest = position;
+                for (int j = first; j <= last; j++) {
+                    long overlap = Math.min(end, (long) (j + 1) * dstSize) - Math.max(begin, (long) j * dstSize);
+                    int weight = (int) ((overlap * WEIGHT_ONE + srcSize / 2) / srcSize);
+                    weights[position] = weight;
+                    if (weight > weights[largest]) {
+                        largest = position;
+                    }
+                    sum += weight;
+                    position++;
+                }
+                //舍入误差补到最大的权重上，保证纯色区域缩放后不变
+                weights[largest] += WEIGHT_ONE - sum;
+            }
+        }
+    }
+
+    /**
+     * 一段的计算，src、temp中的行相对于firstRow，dst中的行相对于firstOutputRow。
+     * 垂直累加缓冲区按{@link #MIN_ROWS_PER_TASK}行一段划分，互不重叠的任务起始行相差不少于此值，使用的缓冲区段也不重叠
+     */
+    private static final class Pass {
+        private final int[] src;
+        private final int srcWidth;
+        private final int firstRow;
+        private final int[] temp;
+        private final int[] dst;
+        private final int[] sum;
+        private final int dstWidth;
+        private final int firstOutputRow;
+        private final Weights horizontal;
+        private final Weights vertical;
+
+        Pass(int[] src, int srcWidth, int firstRow, int[] temp, int[] dst, int[] sum, int dstWidth,
+             int firstOutputRow, Weights horizontal, Weights vertical) {
+            this.src = src;
+            this.srcWidth = srcWidth;
+            this.firstRow = firstRow;
+            this.temp = temp;
+            this.dst = dst;
+            this.sum = sum;
+            this.dstWidth = dstWidth;
+            this.firstOutputRow = firstOutputRow;
+            this.horizontal = horizontal;
+            this.vertical = vertical;
+        }
+
+        /**
+         * 段内[rowStart, rowEnd)行水平缩小，结果带{@link #EXTRA_BITS}位小数
+         */
+        void horizontal(int rowStart, int rowEnd) {
+            int[] weights = horizontal.weights;
+            for (int y = rowStart; y < rowEnd; y++) {
+                int row = y * srcWidth;
+                int out = y * dstWidth * 4;
+                for (int x = 0; x < dstWidth; x++) {
+                    int a = 0;
+                    int r = 0;
+                    int g = 0;
+                    int b = 0;
+                    int index = row + horizontal.start[x];
+                    int w = horizontal.offset[x];
+                    int end = w + horizontal.count[x];
+                    for (; w < end; w++, index++) {
+                        int pixel = src[index];
+                        int weight = weights[w];
+                        a += (pixel >>> 24) * weight;
+                        r += ((pixel >> 16) & 0xFF) * weight;
+                        g += ((pixel >> 8) & 0xFF) * weight;
+                        b += (pixel & 0xFF) * weight;
+                    }
+                    temp[out++] = (a + (1 << (HORIZONTAL_SHIFT - 1))) >> HORIZONTAL_SHIFT;
+                    temp[out++] = (r + (1 << (HORIZONTAL_SHIFT - 1))) >> HORIZONTAL_SHIFT;
+                    temp[out++] = (g + (1 << (HORIZONTAL_SHIFT - 1))) >> HORIZONTAL_SHIFT;
+                    temp[out++] = (b + (1 << (HORIZONTAL_SHIFT - 1))) >> HORIZONTAL_SHIFT;
+                }
+            }
+        }
+
+        /**
+         * 输出[rowStart, rowEnd)行垂直缩小，按原图行顺序累加以便连续访问。行号为整张输出中的行号
+         */
+        void vertical(int rowStart, int rowEnd) {
+            int rowLength = dstWidth * 4;
+            int[] weights = vertical.weights;
+            int base = (rowStart - firstOutputRow) / MIN_ROWS_PER_TASK * rowLength;
+            for (int y = rowStart; y < rowEnd; y++) {
+                Arrays.fill(sum, base, base + rowLength, 0);
+                int w = vertical.offset[y];
+                int end = w + vertical.count[y];
+                int row = (vertical.start[y] - firstRow) * rowLength;
+                for (; w < end; w++, row += rowLength) {
+                    int weight = weights[w];
+                    for (int i = 0; i < rowLength; i++) {
+                        sum[base + i] += temp[row + i] * weight;
+                    }
+                }
+                int out = (y - firstOutputRow) * dstWidth;
+                for (int i = base; i < base + rowLength; i += 4) {
+                    int a = (sum[i] + (1 << (VERTICAL_SHIFT - 1))) >> VERTICAL_SHIFT;
+                    int r = (sum[i + 1] + (1 << (VERTICAL_SHIFT - 1))) >> VERTICAL_SHIFT;
+                    int g = (sum[i + 2] + (1 << (VERTICAL_SHIFT - 1))) >> VERTICAL_SHIFT;
+                    int b = (sum[i + 3] + (1 << (VERTICAL_SHIFT - 1))) >> VERTICAL_SHIFT;
+                    dst[out++] = (a << 24) | (r << 16) | (g << 8) | b;
+                }
+            }
+        }
+    }
+
+    private static final class RowTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Pass pass;
+        private final boolean horizontal;
+        private final int rowStart;
+        private final int rowEnd;
+
+        RowTask(Pass pass, boolean horizontal, int rowStart, int rowEnd) {
+            this.pass = pass;
+            this.horizontal = horizontal;
+            this.rowStart = rowStart;
+            this.rowEnd = rowEnd;
+        }
+
+        @Override
+        protected void compute() {
+            int rows = rowEnd - rowStart;
+            if (rows < MIN_ROWS_PER_TASK * 2) {
+                if (horizontal) {
+                    pass.horizontal(rowStart, rowEnd);
+                } else {
+                    pass.vertical(rowStart, rowEnd);
+                }
+                return;
+            }
+            int middle = rowStart + rows / 2;
+            invokeAll(new RowTask(pass, horizontal, rowStart, middle), new RowTask(pass, horizontal, middle, rowEnd));
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package com.vk.opencameraincircle;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * 从预览帧连拍：按目标间隔截取nv21预览帧，在线程池中并行编码为jpeg，不经过{@link android.hardware.Camera#takePicture}。
+ * 截取在相机线程中执行，复制帧数据的缓冲区数量固定，全部在编码中时跳过到期的帧，内存占用有上限。
+ * 结果在主线程中回调
+ */
+public class BurstCapture {
+
+    /**
+     * 连拍回调，在主线程中执行，取消后不再回调
+     */
+    public interface Callback {
+        /**
+         * 一帧编码完成，多帧并行编码，回调顺序不一定与拍摄顺序一致
+         */
+        void onBurstFrame(BurstCapture burst, Frame frame);
+
+        /**
+         * 全部帧编码完成
+         *
+         * @param frames 按拍摄顺序排列的所有帧
+         */
+        void onBurstCompleted(BurstCapture burst, List<Frame> frames);
+
+        /**
+         * 连拍失败，如编码出错或相机在连拍中被关闭
+         */
+        void onBurstError(BurstCapture burst, Exception e);
+    }
+
+    /**
+     * 连拍中的一帧
+     */
+    public static final class Frame {
+        private final int index;
+        private final long timestampNs;
+        private final int rotation;
+        private final byte[] jpeg;
+
+        Frame(int index, long timestampNs, int rotation, byte[] jpeg) {
+            this.index = index;
+            this.timestampNs = timestampNs;
+            this.rotation = rotation;
+            this.jpeg = jpeg;
+        }
+
+        /**
+         * 拍摄顺序，从0开始
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * 帧到达的时间，{@link android.os.SystemClock#elapsedRealtimeNanos()}
+         */
+        public long getTimestampNs() {
+            return timestampNs;
+        }
+
+        /**
+         * 预览帧为传感器方向，显示时需顺时针旋转的角度
+         */
+        public int getRotation() {
+            return rotation;
+        }
+
+        public byte[] getJpeg() {
+            return jpeg;
+        }
+    }
+
+    private final int count;
+    private final long intervalNs;
+    private final int quality;
+    private final Executor encodeExecutor;
+    private final Callback callback;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    /**
+     * 空闲的复制缓冲区，数量即同时编码的最大帧数
+     */
+    private final ArrayDeque<byte[]> freeBuffers = new ArrayDeque<>();
+    private final List<Frame> frames = new ArrayList<>();
+    private int inFlightLimit;
+    /**
+     * 以下字段只在相机线程中访问
+     */
+    private int captured;
+    private long nextDueNs;
+    private int skippedFrames;
+    private boolean finished;
+    private volatile boolean cancelled;
+
+    /**
+     * @param count          连拍帧数
+     * @param intervalMs     相邻两帧的目标间隔，0表示每个预览帧都截取
+     * @param maxInFlight    同时复制、编码中的最大帧数
+     * @param quality        jpeg质量
+     * @param encodeExecutor 编码线程池
+     * @param callback       结果回调
+     */
+    BurstCapture(int count, long intervalMs, int maxInFlight, int quality, Executor encodeExecutor, Callback callback) {
+        if (count < 1 || intervalMs < 0 || maxInFlight < 1) {
+            throw new IllegalArgumentException("count and maxInFlight must be positive, interval must not be negative");
+        }
+        this.count = count;
+        this.intervalNs = intervalMs * 1000_000L;
+        this.quality = quality;
+        this.encodeExecutor = encodeExecutor;
+        this.callback = callback;
+        this.inFlightLimit = maxInFlight;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * 因复制缓冲区全部在编码中而跳过的到期帧数
+     */
+    public int getSkippedFrames() {
+        return skippedFrames;
+    }
+
+    /**
+     * 取消连拍，之后不再截取和回调
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * 在相机线程中提供一个预览帧，到期时复制后提交编码
+     *
+     * @param nv21        预览帧，返回后不再持有
+     * @param width       预览宽度
+     * @param height      预览高度
+     * @param rotation    显示方向
+     * @param timestampNs 帧到达的时间
+     * @return 已截取完所有帧或已取消，不再需要预览帧时返回true
+     */
+    boolean offer(byte[] nv21, int width, int height, int rotation, long timestampNs) {
+        if (cancelled || finished) {
+            return true;
+        }
+        //预览帧间隔有抖动，提前不超过四分之一间隔到达的帧也算到期
+        if (captured > 0 && timestampNs + intervalNs / 4 < nextDueNs) {
+            return false;
+        }
+        byte[] copy;
+        synchronized (freeBuffers) {
+            copy = freeBuffers.pollFirst();
+            if (copy == null && inFlightLimit > 0) {
+                inFlightLimit--;
+                copy = new byte[nv21.length];
+            }
+        }
+        if (copy == null) {
+            skippedFrames++;
+            return false;
+        }
+        if (copy.length != nv21.length) {
+            copy = new byte[nv21.length];
+        }
+        System.arraycopy(nv21, 0, copy, 0, nv21.length);
+        nextDueNs = (captured == 0 ? timestampNs : nextDueNs) + intervalNs;
+        final int index = captured++;
+        finished = captured == count;
+        final byte[] data = copy;
+        final long timestamp = timestampNs;
+        final int w = width;
+        final int h = height;
+        final int r = rotation;
+        try {
+            encodeExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    //编码线程中的异常不能逃出，否则连拍既不完成也不报错
+                    try {
+                        encode(index, data, w, h, r, timestamp);
+                    } catch (RuntimeException e) {
+                        fail(e);
+                    } catch (OutOfMemoryError e) {
+                        fail(new IllegalStateException("out of memory encoding burst frame " + index, e));
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            fail(e);
+            return true;
+        }
+        return finished;
+    }
+
+    private void encode(int index, byte[] nv21, int width, int height, int rotation, long timestampNs) {
+        if (cancelled) {
+            return;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(width * height / 4);
+        boolean compressed;
+        try {
+            YuvImage image = new YuvImage(nv21, ImageFormat.NV21, width, height, null);
+            compressed = image.compressToJpeg(new Rect(0, 0, width, height), quality, out);
+        } finally {
+            synchronized (freeBuffers) {
+                freeBuffers.addLast(nv21);
+            }
+        }
+        if (!compressed) {
+            fail(new IllegalStateException("failed to encode burst frame " + index));
+            return;
+        }
+        final Frame frame = new Frame(index, timestampNs, rotation, out.toByteArray());
+        final List<Frame> completed;
+        synchronized (frames) {
+            frames.add(frame);
+            if (frames.size() == count) {
+                completed = new ArrayList<>(frames);
+                Collections.sort(completed, new Comparator<Frame>() {
+                    @Override
+                    public int compare(Frame o1, Frame o2) {
+                        return o1.index - o2.index;
+                    }
+                });
+            } else {
+                completed = null;
+            }
+        }
+        if (completed != null) {
+            synchronized (freeBuffers) {
+                freeBuffers.clear();
+            }
+        }
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (cancelled) {
+                    return;
+                }
+                callback.onBurstFrame(BurstCapture.this, frame);
+                if (completed != null) {
+                    callback.onBurstCompleted(BurstCapture.this, Collections.unmodifiableList(completed));
+                }
+            }
+        });
+    }
+
+    /**
+     * 以错误结束连拍，只回调一次
+     */
+    synchronized void fail(final Exception e) {
+        if (cancelled) {
+            return;
+        }
+        cancelled = true;
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onBurstError(BurstCapture.this, e);
+            }
+        });
+    }
+}
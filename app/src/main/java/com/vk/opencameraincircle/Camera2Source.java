@@ -0,0 +1,421 @@
+package com.vk.opencameraincircle;
+
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.graphics.Point;
+import android.graphics.SurfaceTexture;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureFailure;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.util.Size;
+import android.view.Surface;
+import android.view.TextureView;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 基于camera2的数据源。预览帧通过YUV_420_888格式的{@link ImageReader}获取，
+ * 直接以{@link Image}的平面回调，不复制到java数组；拍照使用单独的jpeg输出，预览不会停止。
+ * 所有camera2调用和回调都在独立的相机线程中执行
+ */
+public class Camera2Source implements CameraSource {
+    private static final String TAG = "Camera2Source";
+    /**
+     * 预览帧读取器的最大图片数，回调持有一张，其余用于相机继续出帧
+     */
+    private static final int YUV_MAX_IMAGES = 3;
+    private static final int JPEG_MAX_IMAGES = 2;
+
+    private final CameraManager cameraManager;
+    private final TextureView previewView;
+    private final boolean useFrontCamera;
+    private final int rotation;
+    private final Point requestedSize;
+    private final HandlerThread cameraThread;
+    private final Handler cameraHandler;
+    private final CameraFrame frame = new CameraFrame();
+    private volatile Listener listener;
+
+    /**
+     * 以下字段只在相机线程中访问
+     */
+    private boolean started;
+    private CameraDevice cameraDevice;
+    private CameraCaptureSession captureSession;
+    private ImageReader yuvReader;
+    private ImageReader jpegReader;
+    private Surface previewSurface;
+    private int sensorOrientation;
+    private int displayOrientation;
+    private boolean isMirror;
+    private final ArrayDeque<PictureCallback> pendingPictures = new ArrayDeque<>();
+
+    /**
+     * @param context        上下文
+     * @param previewView    预览控件，为null时只输出预览帧
+     * @param useFrontCamera 是否使用前置相机
+     * @param rotation       屏幕方向，{@link Surface#ROTATION_0}等
+     * @param previewSize    期望的预览大小，选择不小于它的最小尺寸，为null时选择最大的尺寸
+     */
+    public Camera2Source(Context context, TextureView previewView, boolean useFrontCamera, int rotation,
+                         Point previewSize) {
+        cameraManager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        this.previewView = previewView;
+        this.useFrontCamera = useFrontCamera;
+        this.rotation = rotation;
+        this.requestedSize = previewSize;
+        cameraThread = new HandlerThread("Camera2Thread");
+        cameraThread.start();
+        cameraHandler = new Handler(cameraThread.getLooper());
+    }
+
+    /**
+     * 指定朝向的相机是否完整支持camera2，硬件级别为LEGACY的设备上camera2只是旧接口的封装，应使用{@link LegacyCameraSource}
+     */
+    public static boolean isSupported(Context context, boolean useFrontCamera) {
+        CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        try {
+            String id = findCameraId(manager, useFrontCamera);
+            if (id == null) {
+                return false;
+            }
+            Integer level = manager.getCameraCharacteristics(id).get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+            return level != null && level != CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY;
+        } catch (CameraAccessException e) {
+            Log.w(TAG, "failed to query camera2 support", e);
+            return false;
+        }
+    }
+
+    private static String findCameraId(CameraManager manager, boolean useFrontCamera) throws CameraAccessException {
+        int facing = useFrontCamera ? CameraMetadata.LENS_FACING_FRONT : CameraMetadata.LENS_FACING_BACK;
+        for (String id : manager.getCameraIdList()) {
+            Integer lensFacing = manager.getCameraCharacteristics(id).get(CameraCharacteristics.LENS_FACING);
+            if (lensFacing != null && lensFacing == facing) {
+                return id;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void start() {
+        cameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                openCamera();
+            }
+        });
+    }
+
+    @Override
+    public void stop() {
+        cameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                closeCamera();
+            }
+        });
+    }
+
+    @Override
+    public void release() {
+        stop();
+        cameraThread.quitSafely();
+    }
+
+    private void openCamera() {
+        if (started) {
+            return;
+        }
+        try {
+            String cameraId = findCameraId(cameraManager, useFrontCamera);
+            if (cameraId == null) {
+                notifyError(new Exception("camera not found"));
+                return;
+            }
+            CameraCharacteristics characteristics = cameraManager.getCameraCharacteristics(cameraId);
+            Integer orientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+            sensorOrientation = orientation == null ? 0 : orientation;
+            isMirror = useFrontCamera;
+            displayOrientation = computeDisplayOrientation();
+            StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+            if (map == null) {
+                notifyError(new Exception("stream configuration not available"));
+                return;
+            }
+            Size yuvSize = chooseSize(map.getOutputSizes(ImageFormat.YUV_420_888), requestedSize);
+            Size jpegSize = chooseSize(map.getOutputSizes(ImageFormat.JPEG), null);
+            yuvReader = ImageReader.newInstance(yuvSize.getWidth(), yuvSize.getHeight(), ImageFormat.YUV_420_888,
+                    YUV_MAX_IMAGES);
+            yuvReader.setOnImageAvailableListener(yuvListener, cameraHandler);
+            jpegReader = ImageReader.newInstance(jpegSize.getWidth(), jpegSize.getHeight(), ImageFormat.JPEG,
+                    JPEG_MAX_IMAGES);
+            jpegReader.setOnImageAvailableListener(jpegListener, cameraHandler);
+            started = true;
+            cameraManager.openCamera(cameraId, stateCallback, cameraHandler);
+        } catch (CameraAccessException | SecurityException e) {
+            closeCamera();
+            notifyError(e);
+        }
+    }
+
+    /**
+     * 与{@link CameraHelper}相同的预览旋转角度计算
+     */
+    private int computeDisplayOrientation() {
+        int degrees = rotation * 90;
+        if (useFrontCamera) {
+            return (360 - (sensorOrientation + degrees) % 360) % 360;
+        }
+        return (sensorOrientation - degrees + 360) % 360;
+    }
+
+    /**
+     * 选择长、短边都不小于期望值的最小尺寸，没有时或未指定期望值时选择最大的尺寸
+     */
+    private static Size chooseSize(Size[] sizes, Point requested) {
+        Size best = null;
+        Size largest = null;
+        for (Size size : sizes) {
+            long area = (long) size.getWidth() * size.getHeight();
+            if (largest == null || area > (long) largest.getWidth() * largest.getHeight()) {
+                largest = size;
+            }
+            if (requested == null) {
+                continue;
+            }
+            int longSide = Math.max(size.getWidth(), size.getHeight());
+            int shortSide = Math.min(size.getWidth(), size.getHeight());
+            if (longSide >= Math.max(requested.x, requested.y) && shortSide >= Math.min(requested.x, requested.y)
+                    && (best == null || area < (long) best.getWidth() * best.getHeight())) {
+                best = size;
+            }
+        }
+        return best != null ? best : largest;
+    }
+
+    private final CameraDevice.StateCallback stateCallback = new CameraDevice.StateCallback() {
+        @Override
+        public void onOpened(CameraDevice camera) {
+            if (!started) {
+                camera.close();
+                return;
+            }
+            cameraDevice = camera;
+            createSession();
+        }
+
+        @Override
+        public void onDisconnected(CameraDevice camera) {
+            camera.close();
+            if (cameraDevice == camera) {
+                cameraDevice = null;
+                closeCamera();
+            }
+        }
+
+        @Override
+        public void onError(CameraDevice camera, int error) {
+            camera.close();
+            if (cameraDevice == camera || cameraDevice == null) {
+                cameraDevice = null;
+                closeCamera();
+                notifyError(new Exception("camera device error " + error));
+            }
+        }
+    };
+
+    private void createSession() {
+        List<Surface> outputs = new ArrayList<>(3);
+        if (previewView != null && previewView.getSurfaceTexture() != null) {
+            SurfaceTexture texture = previewView.getSurfaceTexture();
+            texture.setDefaultBufferSize(yuvReader.getWidth(), yuvReader.getHeight());
+            previewSurface = new Surface(texture);
+            outputs.add(previewSurface);
+        }
+        outputs.add(yuvReader.getSurface());
+        outputs.add(jpegReader.getSurface());
+        try {
+            cameraDevice.createCaptureSession(outputs, sessionCallback, cameraHandler);
+        } catch (CameraAccessException e) {
+            closeCamera();
+            notifyError(e);
+        }
+    }
+
+    private final CameraCaptureSession.StateCallback sessionCallback = new CameraCaptureSession.StateCallback() {
+        @Override
+        public void onConfigured(CameraCaptureSession session) {
+            if (cameraDevice == null) {
+                session.close();
+                return;
+            }
+            captureSession = session;
+            try {
+                CaptureRequest.Builder builder = cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+                if (previewSurface != null) {
+                    builder.addTarget(previewSurface);
+                }
+                builder.addTarget(yuvReader.getSurface());
+                builder.set(CaptureRequest.CONTROL_AF_MODE, CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+                session.setRepeatingRequest(builder.build(), null, cameraHandler);
+            } catch (CameraAccessException e) {
+                closeCamera();
+                notifyError(e);
+                return;
+            }
+            Listener l = listener;
+            if (l != null) {
+                l.onSourceOpened(Camera2Source.this, yuvReader.getWidth(), yuvReader.getHeight(), displayOrientation,
+                        isMirror);
+            }
+        }
+
+        @Override
+        public void onConfigureFailed(CameraCaptureSession session) {
+            closeCamera();
+            notifyError(new Exception("failed to configure capture session"));
+        }
+    };
+
+    private final ImageReader.OnImageAvailableListener yuvListener = new ImageReader.OnImageAvailableListener() {
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            Image image = reader.acquireLatestImage();
+            if (image == null) {
+                return;
+            }
+            try {
+                Listener l = listener;
+                if (l == null) {
+                    return;
+                }
+                Image.Plane[] planes = image.getPlanes();
+                frame.setPlanes(image.getWidth(), image.getHeight(), image.getTimestamp(),
+                        planes[0].getBuffer(), planes[0].getRowStride(),
+                        planes[1].getBuffer(), planes[2].getBuffer(), planes[1].getRowStride(),
+                        planes[1].getPixelStride());
+                l.onSourceFrame(Camera2Source.this, frame);
+            } finally {
+                image.close();
+            }
+        }
+    };
+
+    @Override
+    public void takePicture(final PictureCallback callback) {
+        cameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (captureSession == null) {
+                    callback.onPictureError(new IllegalStateException("camera not opened"));
+                    return;
+                }
+                try {
+                    CaptureRequest.Builder builder = cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
+                    builder.addTarget(jpegReader.getSurface());
+                    builder.set(CaptureRequest.CONTROL_AF_MODE, CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+                    //不设置JPEG_ORIENTATION：很多设备只写入EXIF而不旋转像素，照片保持传感器方向，由CircleOutput按预览方向旋转
+                    pendingPictures.addLast(callback);
+                    //不停止预览的重复请求，拍照期间预览帧继续输出
+                    captureSession.capture(builder.build(), captureCallback, cameraHandler);
+                } catch (CameraAccessException e) {
+                    pendingPictures.remove(callback);
+                    callback.onPictureError(e);
+                }
+            }
+        });
+    }
+
+    private final CameraCaptureSession.CaptureCallback captureCallback = new CameraCaptureSession.CaptureCallback() {
+        @Override
+        public void onCaptureFailed(CameraCaptureSession session, CaptureRequest request, CaptureFailure failure) {
+            PictureCallback callback = pendingPictures.pollFirst();
+            if (callback != null) {
+                callback.onPictureError(new Exception("capture failed, reason " + failure.getReason()));
+            }
+        }
+    };
+
+    private final ImageReader.OnImageAvailableListener jpegListener = new ImageReader.OnImageAvailableListener() {
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            Image image = reader.acquireNextImage();
+            if (image == null) {
+                return;
+            }
+            byte[] jpeg;
+            try {
+                ByteBuffer buffer = image.getPlanes()[0].getBuffer();
+                jpeg = new byte[buffer.remaining()];
+                buffer.get(jpeg);
+            } finally {
+                image.close();
+            }
+            PictureCallback callback = pendingPictures.pollFirst();
+            if (callback != null) {
+                callback.onPictureTaken(jpeg);
+            }
+        }
+    };
+
+    private void closeCamera() {
+        boolean wasOpened = captureSession != null;
+        if (captureSession != null) {
+            captureSession.close();
+            captureSession = null;
+        }
+        if (cameraDevice != null) {
+            cameraDevice.close();
+            cameraDevice = null;
+        }
+        if (yuvReader != null) {
+            yuvReader.close();
+            yuvReader = null;
+        }
+        if (jpegReader != null) {
+            jpegReader.close();
+            jpegReader = null;
+        }
+        if (previewSurface != null) {
+            previewSurface.release();
+            previewSurface = null;
+        }
+        PictureCallback callback;
+        while ((callback = pendingPictures.pollFirst()) != null) {
+            callback.onPictureError(new IllegalStateException("camera closed before picture was taken"));
+        }
+        started = false;
+        Listener l = listener;
+        if (wasOpened && l != null) {
+            l.onSourceClosed(this);
+        }
+    }
+
+    private void notifyError(Exception e) {
+        Listener l = listener;
+        if (l != null) {
+            l.onSourceError(this, e);
+        }
+    }
+}
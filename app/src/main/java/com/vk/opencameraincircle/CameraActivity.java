@@ -2,15 +2,16 @@ package com.vk.opencameraincircle;
 
 import android.Manifest;
 import android.content.pm.ActivityInfo;
-import android.graphics.Bitmap;
 import android.graphics.Point;
+import android.graphics.SurfaceTexture;
 import android.hardware.Camera;
-import android.net.Uri;
 import android.os.Bundle;
-import android.provider.MediaStore;
+import android.os.Environment;
 import android.util.DisplayMetrics;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.Gravity;
+import android.view.TextureView;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.ViewTreeObserver;
@@ -23,21 +24,55 @@ import android.widget.Toast;
 import androidx.core.app.ActivityCompat;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
 
-public class CameraActivity extends BaseActivity implements ViewTreeObserver.OnGlobalLayoutListener, CameraListener, SeekBar.OnSeekBarChangeListener {
+public class CameraActivity extends BaseActivity implements ViewTreeObserver.OnGlobalLayoutListener, CameraSource.Listener, SeekBar.OnSeekBarChangeListener, CapturePipeline.Callback {
     private static final String TAG = "CameraActivity";
+    /**
+     * 为true时优先使用camera2，设备不完整支持camera2时仍使用旧接口
+     */
+    public static final String EXTRA_USE_CAMERA2 = "use_camera2";
     private static final int ACTION_REQUEST_PERMISSIONS = 1;
+    private CameraSource cameraSource;
+    //使用旧接口时的CameraHelper，零延迟拍照、自动拍照等只在旧接口上提供；使用camera2时为null
     private CameraHelper cameraHelper;
+    private CapturePipeline capturePipeline;
+    //当前的圆形输出设置，只在主线程中访问
+    private CircleOutput circleOutput;
+    //camera2预览的显示方向和帧尺寸，在相机线程中写入
+    private volatile int sourceDisplayOrientation;
+    private volatile int sourcePreviewWidth;
+    private volatile int sourcePreviewHeight;
+    private boolean useFrontCamera;
     private RoundTextureView textureView;
     private RoundBorderView roundBorderView;
     private Button btnCapture,btnNext;
+    private CapturePipeline.CaptureJob captureJob;
+    //点击或自动拍照的处理任务，拍照完成前也可以取消
+    private CapturePipeline.CaptureJob payloadJob;
+    private CaptureStore captureStore;
     String base64String="";
     private final int PREFERED_IMAGE_WIDTH_SIZE = 1200;
+    //画面稳定多久后自动拍照
+    private static final long AUTO_CAPTURE_HOLD_MS = 1000;
+    //从点击拍照到得到上传数据的目标耗时，超出时输出警告
+    private static final long CAPTURE_SLO_MS = 800;
+    //上传用的图片编码，JPEG比无损PNG小得多、编码也快
+    private static final ImageEncoder PAYLOAD_ENCODER = new ImageEncoder.Builder()
+            .format(ImageEncoder.Format.JPEG)
+            .quality(85)
+            .build();
     //用于调整圆角大小
     private SeekBar radiusSeekBar;
+    //拖动过程中最新的进度，每个显示帧最多应用一次
+    private int pendingRadiusProgress;
+    private boolean radiusUpdateScheduled;
+    private final Choreographer.FrameCallback radiusFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            radiusUpdateScheduled = false;
+            applyRadius(pendingRadiusProgress);
+        }
+    };
     //默认打开的CAMERA
     //private static final int CAMERA_ID = Camera.CameraInfo.CAMERA_FACING_BACK;
     private static final int CAMERA_ID = Camera.CameraInfo.CAMERA_FACING_FRONT;
@@ -53,72 +88,104 @@ public class CameraActivity extends BaseActivity implements ViewTreeObserver.OnG
         getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
         setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_LOCKED);
         initView();
+        captureStore = new CaptureStore.Builder()
+                .directory(new File(getExternalFilesDir(Environment.DIRECTORY_PICTURES), "magicLoan"))
+                .build();
         btnCapture.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
-                cameraHelper.takeImage(CameraActivity.this);
+                if (cameraSource == null) {
+                    return;
+                }
+                base64String = "";
+                if (payloadJob != null) {
+                    payloadJob.cancel();
+                    payloadJob = null;
+                }
+                if (cameraHelper != null) {
+                    //取最近500ms内最清晰的预览帧直接生成上传数据，原图在后台保存
+                    cameraHelper.stopAutoCapture();
+                    payloadJob = cameraHelper.takeImage(CameraActivity.this, PREFERED_IMAGE_WIDTH_SIZE, PAYLOAD_ENCODER, true, CameraActivity.this);
+                } else {
+                    takeCamera2Picture();
+                }
             }
         });
         btnNext.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
-                String tempImageFilePath = CameraHelper.imagesFilesPaths.get(CameraHelper.imagesFilesPaths.size()-1);
-                Uri tempImageURI = Uri.fromFile(new File( tempImageFilePath ));
-                resizeThanLoadImage(tempImageFilePath, tempImageURI);
+                if (capturePipeline == null) {
+                    return;
+                }
+                //只处理本次拍摄的照片，不使用上次运行留下的
+                String tempImageFilePath = captureStore.latestCaptured();
+                if (tempImageFilePath == null) {
+                    return;
+                }
+                if (!base64String.isEmpty()) {
+                    return;
+                }
+                resizeThanLoadImage(tempImageFilePath);
             }
         });
     }
-    private void resizeThanLoadImage(String tempImageFilePath, Uri tempImageURI){
-        Bitmap bitmap = null;
-        try {
-            bitmap = MediaStore.Images.Media.getBitmap(this.getContentResolver(), tempImageURI);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        if(bitmap == null)return;
+    private void resizeThanLoadImage(String tempImageFilePath){
+        //在后台按采样率解码到目标大小并编码，同一张照片只会有一个处理中的任务
+        captureJob = capturePipeline.process(tempImageFilePath, PREFERED_IMAGE_WIDTH_SIZE, PAYLOAD_ENCODER, this);
+    }
 
-        int sizeDivisor = 1;
+    /**
+     * camera2拍照不停止预览，照片与旧接口一样为传感器方向，按预览的显示方向旋转和镜像
+     */
+    private void takeCamera2Picture() {
+        final CircleOutput circle = circleOutput;
+        cameraSource.takePicture(new CameraSource.PictureCallback() {
+            @Override
+            public void onPictureTaken(byte[] jpeg) {
+                final CapturePipeline.CaptureJob job = capturePipeline.processBytes(jpeg, newCaptureFile(),
+                        PREFERED_IMAGE_WIDTH_SIZE, circle != null ? circle.forPreview(sourceDisplayOrientation, false,
+                                useFrontCamera, sourcePreviewWidth, sourcePreviewHeight) : null,
+                        PAYLOAD_ENCODER, CameraActivity.this);
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isDestroyed()) {
+                            job.cancel();
+                            return;
+                        }
+                        payloadJob = job;
+                    }
+                });
+            }
 
-        double imageSize = bitmap.getWidth();
-        if(bitmap.getHeight() > bitmap.getWidth())imageSize = bitmap.getHeight();
-        sizeDivisor = round(imageSize / PREFERED_IMAGE_WIDTH_SIZE);
-        if(sizeDivisor == 0)sizeDivisor = 1;
-        Bitmap bitmapScaled = Bitmap.createScaledBitmap(bitmap, (bitmap.getWidth()/sizeDivisor), (bitmap.getHeight()/sizeDivisor), true);
-        storeBitmapInFile(bitmapScaled, tempImageFilePath);
-        onImageLoaded(tempImageURI);
+            @Override
+            public void onPictureError(Exception e) {
+                Log.e(TAG, "onPictureError: ", e);
+            }
+        });
     }
-    private int round(double d){
-        double dAbs = Math.abs(d);
-        int i = (int) dAbs;
-        double result = dAbs - (double) i;
-        if(result<0.5){
-            return d<0 ? -i : i;
-        }else{
-            return d<0 ? -(i+1) : i+1;
+
+    /**
+     * @return 原图的保存位置，目录无法创建时返回null，不保存原图
+     */
+    private File newCaptureFile() {
+        File directory = captureStore.getDirectory();
+        if (!directory.exists() && !directory.mkdirs()) {
+            Log.w(TAG, "failed to create " + directory);
+            return null;
         }
+        return CaptureWriter.newCaptureFile(directory);
     }
-    private void storeBitmapInFile(Bitmap image, String filePath) {
-        File pictureFile = new File(filePath);
-        String TAG = "TakePhotosFragment>>>> ";
-        try {
-            FileOutputStream fos = new FileOutputStream(pictureFile);
-            image.compress(Bitmap.CompressFormat.JPEG, 80, fos);
-            fos.close();
-        } catch (FileNotFoundException e) {
-            Log.d(TAG, "File not found: " + e.getMessage());
-        } catch (IOException e) {
-            Log.d(TAG, "Error accessing file: " + e.getMessage());
-        }
+
+    @Override
+    public void onCaptureProcessed(CapturePipeline.CaptureJob job, String base64) {
+        base64String = base64;
+        Log.i(TAG, "onCaptureProcessed: " + base64.length() + " chars");
     }
-    private void onImageLoaded(Uri imageUri) {
-        Bitmap bitmap = null;
-        try {
-            bitmap = MediaStore.Images.Media.getBitmap(this.getContentResolver(), imageUri);
-            base64String = ImageUtil.convert(bitmap);
-            Log.e("TAG>>>", "onImageLoaded: "+base64String);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+
+    @Override
+    public void onCaptureError(CapturePipeline.CaptureJob job, Exception e) {
+        Log.e(TAG, "onCaptureError: " + job.getPath(), e);
     }
 
     private void initView() {
@@ -129,14 +196,56 @@ public class CameraActivity extends BaseActivity implements ViewTreeObserver.OnG
     }
 
     void initCamera() {
-        cameraHelper = new CameraHelper.Builder()
-                .cameraListener(this)
-                .specificCameraId(CAMERA_ID)
-                .previewOn(textureView)
-                .previewViewSize(new Point(textureView.getLayoutParams().width, textureView.getLayoutParams().height))
-                .rotation(getWindowManager().getDefaultDisplay().getRotation())
-                .build();
-        cameraHelper.start();
+        Point previewViewSize = new Point(textureView.getLayoutParams().width, textureView.getLayoutParams().height);
+        int rotation = getWindowManager().getDefaultDisplay().getRotation();
+        useFrontCamera = CAMERA_ID == Camera.CameraInfo.CAMERA_FACING_FRONT;
+        if (getIntent().getBooleanExtra(EXTRA_USE_CAMERA2, false)
+                && Camera2Source.isSupported(this, useFrontCamera)) {
+            cameraSource = new Camera2Source(this, textureView, useFrontCamera, rotation, previewViewSize);
+            capturePipeline = new CapturePipeline();
+            capturePipeline.setCaptureStore(captureStore);
+        } else {
+            LegacyCameraSource legacySource = new LegacyCameraSource(new CameraHelper.Builder()
+                    .specificCameraId(CAMERA_ID)
+                    .previewOn(textureView)
+                    .previewViewSize(previewViewSize)
+                    .rotation(rotation)
+                    .previewDispatch(FrameDispatcher.BackpressurePolicy.KEEP_LATEST, 1)
+                    .zeroShutterLag(6, 500)
+                    .qualityThresholds(new FrameQualityAnalyzer.Thresholds.Builder().build())
+                    .captureStore(captureStore)
+                    .capabilityCache(CameraCapabilityCache.forContext(this)));
+            cameraSource = legacySource;
+            cameraHelper = legacySource.getCameraHelper();
+            capturePipeline = cameraHelper.getCapturePipeline();
+        }
+        Log.i(TAG, "initCamera: " + cameraSource.getClass().getSimpleName());
+        capturePipeline.getTracer().setSlo(CAPTURE_SLO_MS);
+        cameraSource.setListener(this);
+        if (cameraHelper != null || textureView.isAvailable()) {
+            cameraSource.start();
+            return;
+        }
+        //camera2在创建会话时需要预览控件的SurfaceTexture
+        textureView.setSurfaceTextureListener(new TextureView.SurfaceTextureListener() {
+            @Override
+            public void onSurfaceTextureAvailable(SurfaceTexture surface, int width, int height) {
+                cameraSource.start();
+            }
+
+            @Override
+            public void onSurfaceTextureSizeChanged(SurfaceTexture surface, int width, int height) {
+            }
+
+            @Override
+            public boolean onSurfaceTextureDestroyed(SurfaceTexture surface) {
+                return true;
+            }
+
+            @Override
+            public void onSurfaceTextureUpdated(SurfaceTexture surface) {
+            }
+        });
     }
 
     @Override
@@ -168,8 +277,8 @@ public class CameraActivity extends BaseActivity implements ViewTreeObserver.OnG
 
     @Override
     protected void onPause() {
-        if (cameraHelper != null) {
-            cameraHelper.stop();
+        if (cameraSource != null) {
+            cameraSource.stop();
         }
         super.onPause();
     }
@@ -177,34 +286,47 @@ public class CameraActivity extends BaseActivity implements ViewTreeObserver.OnG
     @Override
     protected void onResume() {
         super.onResume();
-        if (cameraHelper != null) {
-            cameraHelper.start();
+        if (cameraSource != null) {
+            cameraSource.start();
         }
     }
 
 
-    private Camera.Size previewSize;
     private int squarePreviewSize;
 
     @Override
-    public void onCameraOpened(Camera camera, int cameraId, final int displayOrientation, boolean isMirror) {
-        previewSize = camera.getParameters().getPreviewSize();
-        Log.i(TAG, "onCameraOpened:  previewSize = " + previewSize.width + "x" + previewSize.height);
-        squarePreviewSize = Math.min(previewSize.width, previewSize.height);
-        //在相机打开时，添加右上角的view用于显示原始数据和预览数据
+    public void onSourceOpened(CameraSource source, final int width, final int height, final int displayOrientation,
+                               boolean isMirror) {
+        Log.i(TAG, "onSourceOpened:  previewSize = " + width + "x" + height);
+        squarePreviewSize = Math.min(width, height);
+        sourceDisplayOrientation = displayOrientation;
+        sourcePreviewWidth = width;
+        sourcePreviewHeight = height;
+        //本方法在相机线程中执行，拍照状态和界面只在主线程中访问
         runOnUiThread(new Runnable() {
             @Override
             public void run() {
+                //还没有拍照时，画面稳定后自动拍照，避免点击按钮引起抖动
+                if (cameraHelper != null && base64String.isEmpty()) {
+                    //每次重新打开都会回调，先取消上一次的任务，避免旧任务继续拍照并回调
+                    if (payloadJob != null) {
+                        payloadJob.cancel();
+                        payloadJob = null;
+                    }
+                    payloadJob = cameraHelper.startAutoCapture(CameraActivity.this, AUTO_CAPTURE_HOLD_MS,
+                            PREFERED_IMAGE_WIDTH_SIZE, PAYLOAD_ENCODER, true, CameraActivity.this);
+                }
+                //在相机打开时，添加右上角的view用于显示原始数据和预览数据
                 //将预览控件和预览尺寸比例保持一致，避免拉伸
                 {
                     ViewGroup.LayoutParams layoutParams = textureView.getLayoutParams();
                     //横屏
                     if (displayOrientation % 180 == 0) {
-                        layoutParams.height = layoutParams.width * previewSize.height / previewSize.width;
+                        layoutParams.height = layoutParams.width * height / width;
                     }
                     //竖屏
                     else {
-                        layoutParams.height = layoutParams.width * previewSize.width / previewSize.height;
+                        layoutParams.height = layoutParams.width * width / height;
                     }
                     textureView.setLayoutParams(layoutParams);
                 }
@@ -212,6 +334,8 @@ public class CameraActivity extends BaseActivity implements ViewTreeObserver.OnG
                     return;
                 }
                 roundBorderView = new RoundBorderView(CameraActivity.this);
+                //预览每帧刷新时边框直接从硬件层合成，不再重新光栅化
+                roundBorderView.setCacheMode(RoundBorderView.CACHE_HARDWARE_LAYER);
                 ((FrameLayout) textureView.getParent()).addView(roundBorderView, textureView.getLayoutParams());
 
                 radiusSeekBar = new SeekBar(CameraActivity.this);
@@ -238,41 +362,78 @@ public class CameraActivity extends BaseActivity implements ViewTreeObserver.OnG
     }
 
     @Override
-    public void onPreview(final byte[] nv21, Camera camera) {
+    public void onSourceFrame(CameraSource source, CameraFrame frame) {
 
     }
 
     @Override
-    public void onCameraClosed() {
-        Log.i(TAG, "onCameraClosed: ");
+    public void onSourceClosed(CameraSource source) {
+        Log.i(TAG, "onSourceClosed: ");
     }
 
     @Override
-    public void onCameraError(Exception e) {
+    public void onSourceError(CameraSource source, Exception e) {
         e.printStackTrace();
     }
 
-    @Override
-    public void onCameraConfigurationChanged(int cameraID, int displayOrientation) {
-
-    }
-
     @Override
     protected void onDestroy() {
-        if (cameraHelper != null) {
-            cameraHelper.release();
+        if (captureJob != null) {
+            captureJob.cancel();
+        }
+        if (payloadJob != null) {
+            payloadJob.cancel();
+        }
+        if (radiusUpdateScheduled) {
+            Choreographer.getInstance().removeFrameCallback(radiusFrameCallback);
+            radiusUpdateScheduled = false;
+        }
+        if (cameraSource != null) {
+            cameraSource.release();
+        }
+        //camera2时处理流水线由本页面创建，旧接口的由CameraHelper释放
+        if (cameraHelper == null && capturePipeline != null) {
+            capturePipeline.shutdown();
         }
         super.onDestroy();
     }
 
     @Override
     public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
-        textureView.setRadius(progress * Math.min(textureView.getWidth(), textureView.getHeight()) / 2 / seekBar.getMax());
-        textureView.turnRound();
+        //拖动时每次触摸事件都会回调，合并到下一个显示帧再更新
+        pendingRadiusProgress = progress;
+        if (!radiusUpdateScheduled) {
+            radiusUpdateScheduled = true;
+            Choreographer.getInstance().postFrameCallback(radiusFrameCallback);
+        }
+    }
+
+    private void applyRadius(int progress) {
+        int max = radiusSeekBar.getMax();
+        //半径的像素值不变时不刷新轮廓和边框
+        int textureRadius = progress * Math.min(textureView.getWidth(), textureView.getHeight()) / 2 / max;
+        if (textureRadius != textureView.getRadius()) {
+            textureView.setRadius(textureRadius);
+            textureView.turnRound();
+        }
 
-        roundBorderView.setRadius(progress * Math.min(roundBorderView.getWidth(), roundBorderView.getHeight()) / 2 / seekBar.getMax());
-        roundBorderView.turnRound();
+        int borderRadius = progress * Math.min(roundBorderView.getWidth(), roundBorderView.getHeight()) / 2 / max;
+        if (borderRadius != roundBorderView.getRadius()) {
+            roundBorderView.setRadius(borderRadius);
+            roundBorderView.turnRound();
+        }
 
+        //上传数据只保留与预览圆形一致的区域，圆外填充为白色；帧分析同样只看圆内
+        if (progress > 0) {
+            float radiusRatio = (float) progress / max;
+            circleOutput = new CircleOutput.Builder()
+                    .radiusRatio(radiusRatio)
+                    .build();
+            if (cameraHelper != null) {
+                cameraHelper.setCircleOutput(circleOutput);
+                cameraHelper.setCircleRadiusRatio(radiusRatio);
+            }
+        }
     }
 
     @Override
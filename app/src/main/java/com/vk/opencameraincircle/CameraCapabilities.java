@@ -0,0 +1,183 @@
+package com.vk.opencameraincircle;
+
+import android.hardware.Camera;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * 一个相机的能力信息：朝向、传感器方向、支持的预览/拍照尺寸、对焦模式和默认帧率范围。
+ * 尺寸按宽度、高度从大到小排列并以{@code [w0, h0, w1, h1, ...]}紧凑存储，可由{@link CameraCapabilityCache}持久化
+ */
+public final class CameraCapabilities {
+    private final int cameraId;
+    private final int facing;
+    private final int orientation;
+    private final int[] previewSizes;
+    private final int[] pictureSizes;
+    private final List<String> focusModes;
+    private final int minFps;
+    private final int maxFps;
+
+    CameraCapabilities(int cameraId, int facing, int orientation, int[] previewSizes, int[] pictureSizes,
+                       List<String> focusModes, int minFps, int maxFps) {
+        this.cameraId = cameraId;
+        this.facing = facing;
+        this.orientation = orientation;
+        this.previewSizes = previewSizes;
+        this.pictureSizes = pictureSizes;
+        this.focusModes = Collections.unmodifiableList(focusModes);
+        this.minFps = minFps;
+        this.maxFps = maxFps;
+    }
+
+    /**
+     * 从已打开的相机查询能力信息
+     *
+     * @param cameraId   相机ID
+     * @param parameters 相机的默认参数
+     */
+    public static CameraCapabilities query(int cameraId, Camera.Parameters parameters) {
+        Camera.CameraInfo info = new Camera.CameraInfo();
+        Camera.getCameraInfo(cameraId, info);
+        List<String> focusModes = parameters.getSupportedFocusModes();
+        int[] fpsRange = new int[2];
+        parameters.getPreviewFpsRange(fpsRange);
+        int[] previewSizes = pack(parameters.getSupportedPreviewSizes());
+        if (previewSizes.length == 0) {
+            Camera.Size size = parameters.getPreviewSize();
+            previewSizes = new int[]{size.width, size.height};
+        }
+        return new CameraCapabilities(cameraId, info.facing, info.orientation, previewSizes,
+                pack(parameters.getSupportedPictureSizes()),
+                focusModes == null ? new ArrayList<String>() : new ArrayList<>(focusModes),
+                fpsRange[Camera.Parameters.PREVIEW_FPS_MIN_INDEX], fpsRange[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]);
+    }
+
+    /**
+     * 按宽度、高度从大到小排序后紧凑存储
+     */
+    private static int[] pack(List<Camera.Size> sizes) {
+        if (sizes == null || sizes.isEmpty()) {
+            return new int[0];
+        }
+        Camera.Size[] sorted = sizes.toArray(new Camera.Size[0]);
+        Arrays.sort(sorted, new Comparator<Camera.Size>() {
+            @Override
+            public int compare(Camera.Size o1, Camera.Size o2) {
+                if (o1.width != o2.width) {
+                    return o1.width > o2.width ? -1 : 1;
+                }
+                return o1.height > o2.height ? -1 : (o1.height == o2.height ? 0 : 1);
+            }
+        });
+        int[] packed = new int[sorted.length * 2];
+        for (int i = 0; i < sorted.length; i++) {
+            packed[i * 2] = sorted[i].width;
+            packed[i * 2 + 1] = sorted[i].height;
+        }
+        return packed;
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(cameraId);
+        out.writeByte(facing);
+        out.writeShort(orientation);
+        writeSizes(out, previewSizes);
+        writeSizes(out, pictureSizes);
+        out.writeByte(focusModes.size());
+        for (String mode : focusModes) {
+            out.writeUTF(mode);
+        }
+        out.writeInt(minFps);
+        out.writeInt(maxFps);
+    }
+
+    static CameraCapabilities readFrom(DataInputStream in) throws IOException {
+        int cameraId = in.readInt();
+        int facing = in.readByte();
+        int orientation = in.readShort();
+        int[] previewSizes = readSizes(in);
+        int[] pictureSizes = readSizes(in);
+        int modeCount = in.readUnsignedByte();
+        List<String> focusModes = new ArrayList<>(modeCount);
+        for (int i = 0; i < modeCount; i++) {
+            focusModes.add(in.readUTF());
+        }
+        int minFps = in.readInt();
+        int maxFps = in.readInt();
+        return new CameraCapabilities(cameraId, facing, orientation, previewSizes, pictureSizes, focusModes,
+                minFps, maxFps);
+    }
+
+    private static void writeSizes(DataOutputStream out, int[] sizes) throws IOException {
+        out.writeShort(sizes.length / 2);
+        for (int value : sizes) {
+            out.writeShort(value);
+        }
+    }
+
+    private static int[] readSizes(DataInputStream in) throws IOException {
+        int[] sizes = new int[in.readUnsignedShort() * 2];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = in.readUnsignedShort();
+        }
+        return sizes;
+    }
+
+    public int getCameraId() {
+        return cameraId;
+    }
+
+    /**
+     * @return {@link Camera.CameraInfo#CAMERA_FACING_FRONT}或{@link Camera.CameraInfo#CAMERA_FACING_BACK}
+     */
+    public int getFacing() {
+        return facing;
+    }
+
+    /**
+     * @return 传感器方向，同{@link Camera.CameraInfo#orientation}
+     */
+    public int getOrientation() {
+        return orientation;
+    }
+
+    /**
+     * @return 支持的预览尺寸，按宽度、高度从大到小排列的{@code [w0, h0, w1, h1, ...]}，不能修改
+     */
+    public int[] getPreviewSizes() {
+        return previewSizes;
+    }
+
+    /**
+     * @return 支持的拍照尺寸，格式同{@link #getPreviewSizes()}
+     */
+    public int[] getPictureSizes() {
+        return pictureSizes;
+    }
+
+    public List<String> getFocusModes() {
+        return focusModes;
+    }
+
+    /**
+     * @return 默认预览帧率范围的下限，单位为千分之一帧每秒
+     */
+    public int getMinFps() {
+        return minFps;
+    }
+
+    /**
+     * @return 默认预览帧率范围的上限，单位为千分之一帧每秒
+     */
+    public int getMaxFps() {
+        return maxFps;
+    }
+}
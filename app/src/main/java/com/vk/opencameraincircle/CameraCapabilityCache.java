@@ -0,0 +1,134 @@
+package com.vk.opencameraincircle;
+
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 相机能力信息的持久化缓存，线程安全。以二进制文件保存在应用私有目录，按相机ID记录，
+ * 系统版本（{@link Build#FINGERPRINT}）变化或文件格式变化时整体作废。第二次及以后打开相机时尺寸、对焦模式、帧率
+ * 直接从缓存中选择，不再解析HAL返回的支持列表；设置参数仍需调用一次{@link android.hardware.Camera#getParameters()}，
+ * 旧接口没有其他方式取得可修改的参数对象
+ */
+public class CameraCapabilityCache {
+    private static final String TAG = "CameraCapabilityCache";
+    private static final int MAGIC = 0x43434150;
+    private static final int VERSION = 1;
+    private static final String FILE_NAME = "camera_capabilities.bin";
+
+    private final File file;
+    private final String fingerprint;
+    private Map<Integer, CameraCapabilities> entries;
+
+    /**
+     * @param file        缓存文件
+     * @param fingerprint 设备及系统版本标识，与文件中记录的不一致时缓存作废
+     */
+    public CameraCapabilityCache(File file, String fingerprint) {
+        this.file = file;
+        this.fingerprint = fingerprint == null ? "" : fingerprint;
+    }
+
+    /**
+     * 在应用缓存目录中创建，以{@link Build#FINGERPRINT}作为版本标识
+     */
+    public static CameraCapabilityCache forContext(Context context) {
+        return new CameraCapabilityCache(new File(context.getCacheDir(), FILE_NAME), Build.FINGERPRINT);
+    }
+
+    /**
+     * @return 缓存的能力信息，没有时返回null；第一次调用时读取文件
+     */
+    public synchronized CameraCapabilities get(int cameraId) {
+        ensureLoaded();
+        return entries.get(cameraId);
+    }
+
+    /**
+     * 记录能力信息并写入文件
+     */
+    public synchronized void put(CameraCapabilities capabilities) {
+        ensureLoaded();
+        entries.put(capabilities.getCameraId(), capabilities);
+        save();
+    }
+
+    /**
+     * 清除缓存并删除文件
+     */
+    public synchronized void clear() {
+        entries = new HashMap<>();
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "failed to delete " + file);
+        }
+    }
+
+    private void ensureLoaded() {
+        if (entries != null) {
+            return;
+        }
+        entries = new HashMap<>();
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION || !fingerprint.equals(in.readUTF())) {
+                    Log.i(TAG, "capability cache outdated, ignored");
+                    return;
+                }
+                int count = in.readUnsignedByte();
+                for (int i = 0; i < count; i++) {
+                    CameraCapabilities capabilities = CameraCapabilities.readFrom(in);
+                    entries.put(capabilities.getCameraId(), capabilities);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (FileNotFoundException e) {
+            //第一次启动
+        } catch (IOException e) {
+            Log.w(TAG, "failed to read capability cache", e);
+            entries.clear();
+        }
+    }
+
+    /**
+     * 先写临时文件再重命名，写入中途退出不会留下损坏的缓存
+     */
+    private void save() {
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(fingerprint);
+                out.writeByte(entries.size());
+                for (CameraCapabilities capabilities : entries.values()) {
+                    capabilities.writeTo(out);
+                }
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("failed to rename " + temp + " to " + file);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "failed to write capability cache", e);
+            if (temp.exists() && !temp.delete()) {
+                Log.w(TAG, "failed to delete " + temp);
+            }
+        }
+    }
+}
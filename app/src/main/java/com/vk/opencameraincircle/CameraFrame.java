@@ -0,0 +1,177 @@
+package com.vk.opencameraincircle;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 一帧YUV 4:2:0预览数据，以Y、U、V三个平面描述，直接引用相机的缓冲区而不复制。
+ * 对象由{@link CameraSource}复用，只在{@link CameraSource.Listener#onSourceFrame}执行期间有效
+ */
+public final class CameraFrame {
+    /**
+     * 缓存平面视图的nv21数组个数，不小于相机轮换使用的预览缓冲区数量时逐帧不分配对象
+     */
+    private static final int MAX_CACHED_ARRAYS = 8;
+
+    private int width;
+    private int height;
+    private long timestampNs;
+    private ByteBuffer yPlane;
+    private ByteBuffer uPlane;
+    private ByteBuffer vPlane;
+    private int yRowStride;
+    private int uvRowStride;
+    private int uvPixelStride;
+    /**
+     * 数据本身是nv21数组时的引用
+     */
+    private byte[] nv21;
+    private final Nv21Views[] nv21Views = new Nv21Views[MAX_CACHED_ARRAYS];
+    private int nextNv21Views;
+
+    /**
+     * 以平面设置帧数据，如Camera2的{@code Image.getPlanes()}
+     */
+    void setPlanes(int width, int height, long timestampNs, ByteBuffer yPlane, int yRowStride,
+                   ByteBuffer uPlane, ByteBuffer vPlane, int uvRowStride, int uvPixelStride) {
+        this.width = width;
+        this.height = height;
+        this.timestampNs = timestampNs;
+        this.yPlane = yPlane;
+        this.yRowStride = yRowStride;
+        this.uPlane = uPlane;
+        this.vPlane = vPlane;
+        this.uvRowStride = uvRowStride;
+        this.uvPixelStride = uvPixelStride;
+        this.nv21 = null;
+    }
+
+    /**
+     * 以nv21数组设置帧数据，平面是数组的视图。视图按数组缓存，只在数组或尺寸变化时重建
+     */
+    void setNv21(byte[] nv21, int width, int height, long timestampNs) {
+        Nv21Views views = null;
+        for (Nv21Views cached : nv21Views) {
+            if (cached != null && cached.array == nv21 && cached.width == width && cached.height == height) {
+                views = cached;
+                break;
+            }
+        }
+        if (views == null) {
+            views = new Nv21Views(nv21, width, height);
+            nv21Views[nextNv21Views] = views;
+            nextNv21Views = (nextNv21Views + 1) % MAX_CACHED_ARRAYS;
+        } else {
+            //上一帧的使用者可能移动过位置
+            views.y.clear();
+            views.u.clear();
+            views.v.clear();
+        }
+        setPlanes(width, height, timestampNs, views.y, width, views.u, views.v, width, 2);
+        this.nv21 = nv21;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * 帧的时间，不同数据源的时间基准可能不同，只用于同一数据源的帧之间比较
+     */
+    public long getTimestampNs() {
+        return timestampNs;
+    }
+
+    public ByteBuffer getYPlane() {
+        return yPlane;
+    }
+
+    public ByteBuffer getUPlane() {
+        return uPlane;
+    }
+
+    public ByteBuffer getVPlane() {
+        return vPlane;
+    }
+
+    public int getYRowStride() {
+        return yRowStride;
+    }
+
+    public int getUvRowStride() {
+        return uvRowStride;
+    }
+
+    public int getUvPixelStride() {
+        return uvPixelStride;
+    }
+
+    /**
+     * @return 数据本身就是nv21数组时返回该数组，可以直接使用；否则返回null，需调用{@link #copyToNv21(byte[])}
+     */
+    public byte[] getNv21Array() {
+        return nv21;
+    }
+
+    /**
+     * 按nv21格式复制到调用方提供的缓冲区
+     *
+     * @param out 长度至少为{@code width * height * 3 / 2}
+     */
+    public void copyToNv21(byte[] out) {
+        int ySize = width * height;
+        if (out.length < ySize * 3 / 2) {
+            throw new IllegalArgumentException("buffer too small: " + out.length);
+        }
+        if (nv21 != null) {
+            System.arraycopy(nv21, 0, out, 0, ySize * 3 / 2);
+            return;
+        }
+        ByteBuffer y = yPlane.duplicate();
+        if (yRowStride == width) {
+            y.position(0);
+            y.get(out, 0, ySize);
+        } else {
+            for (int row = 0; row < height; row++) {
+                y.position(row * yRowStride);
+                y.get(out, row * width, width);
+            }
+        }
+        int chromaWidth = width / 2;
+        int chromaHeight = height / 2;
+        int offset = ySize;
+        for (int row = 0; row < chromaHeight; row++) {
+            int base = row * uvRowStride;
+            for (int col = 0; col < chromaWidth; col++) {
+                int index = base + col * uvPixelStride;
+                out[offset++] = vPlane.get(index);
+                out[offset++] = uPlane.get(index);
+            }
+        }
+    }
+
+    /**
+     * 一个nv21数组的三个平面视图
+     */
+    private static final class Nv21Views {
+        final byte[] array;
+        final int width;
+        final int height;
+        final ByteBuffer y;
+        final ByteBuffer u;
+        final ByteBuffer v;
+
+        Nv21Views(byte[] array, int width, int height) {
+            this.array = array;
+            this.width = width;
+            this.height = height;
+            int ySize = width * height;
+            y = ByteBuffer.wrap(array, 0, ySize).slice();
+            u = ByteBuffer.wrap(array, ySize + 1, ySize / 2 - 1).slice();
+            v = ByteBuffer.wrap(array, ySize, ySize / 2).slice();
+        }
+    }
+}
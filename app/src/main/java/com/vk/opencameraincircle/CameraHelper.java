@@ -6,32 +6,52 @@ import android.graphics.Point;
 import android.graphics.SurfaceTexture;
 import android.hardware.Camera;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Surface;
 import android.view.TextureView;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Comparator;
-import java.util.Date;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
- * 相机辅助类，和{@link CameraListener}共同使用，获取nv21数据等操作
+ * 相机辅助类，和{@link CameraListener}共同使用，获取nv21数据等操作。
+ * 所有{@link Camera}调用及预览回调都在独立的相机线程中按调用顺序执行，{@link #start()}、{@link #stop()}、
+ * {@link #release()}均为异步操作，结果通过{@link CameraListener}在相机线程中回调
  */
 public class CameraHelper implements Camera.PreviewCallback {
     private static final String TAG = "CameraHelper";
-    private Camera mCamera;
+    /**
+     * 连拍时同时复制、编码中的最大帧数
+     */
+    private static final int BURST_MAX_IN_FLIGHT = 3;
+    private static final int BURST_JPEG_QUALITY = 90;
+    private volatile Camera mCamera;
+    /**
+     * 保护工作线程归还缓冲区时对mCamera的访问
+     */
+    private final Object cameraLock = new Object();
+    private volatile boolean isStopped = true;
+    private final HandlerThread cameraThread;
+    private final Handler cameraHandler;
     private int mCameraId;
     private Point previewViewSize;
     private TextureView previewDisplayView;
     private Camera.Size previewSize;
+    private volatile CameraCapabilities capabilities;
+    private CameraCapabilityCache capabilityCache;
     private Point specificPreviewSize;
+    private PreviewSizePolicy previewSizePolicy;
+    private PreviewSizePolicy.Choice previewSizeChoice;
+    private final FrameMetrics frameMetrics = new FrameMetrics();
+    private long metricsLogIntervalMs;
     private int displayOrientation = 0;
     private int rotation;
     private int additionalRotation;
@@ -39,8 +59,38 @@ public class CameraHelper implements Camera.PreviewCallback {
 
     private Integer specificCameraId = null;
     private CameraListener cameraListener;
+    private PreviewBufferPool bufferPool;
+    private final CapturePipeline capturePipeline = new CapturePipeline();
+    /**
+     * 拍照进行中，相机线程中访问
+     */
+    private boolean isTakingPicture;
+    /**
+     * 本次拍照的直接处理请求，为null时只保存文件，相机线程中访问
+     */
+    private PayloadRequest payloadRequest;
+    /**
+     * 进行中的连拍，相机线程中访问
+     */
+    private BurstCapture burstCapture;
+    private final ExecutorService burstExecutor =
+            Executors.newFixedThreadPool(Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1)));
+    private FrameDispatcher frameDispatcher;
+    private ExecutorService dispatchExecutor;
     private Context mContext;
-    static List<String> imagesFilesPaths = new ArrayList<>();
+    private CaptureStore captureStore;
+    private ZslBuffer zslBuffer;
+    private final FrameQualityAnalyzer qualityAnalyzer = new FrameQualityAnalyzer();
+    private final StabilityDetector stabilityDetector = new StabilityDetector(16);
+    /**
+     * 等待画面稳定后执行的拍照请求，相机线程中访问
+     */
+    private PayloadRequest autoCaptureRequest;
+    private FrameQualityAnalyzer.Thresholds qualityThresholds;
+    /**
+     * 拍照输出只保留圆形区域时的设置，为null时输出整张照片
+     */
+    private volatile CircleOutput circleOutput;
 
     private CameraHelper(Builder builder) {
         previewDisplayView = builder.previewDisplayView;
@@ -51,74 +101,159 @@ public class CameraHelper implements Camera.PreviewCallback {
         previewViewSize = builder.previewViewSize;
         specificPreviewSize = builder.previewSize;
         isMirror = builder.isMirror;
+        bufferPool = new PreviewBufferPool(builder.previewBufferCount);
+        bufferPool.setMetrics(frameMetrics);
+        metricsLogIntervalMs = builder.metricsLogIntervalMs;
+        qualityThresholds = builder.qualityThresholds;
+        capabilityCache = builder.capabilityCache;
+        previewSizePolicy = builder.previewSizePolicy != null ? builder.previewSizePolicy
+                : PreviewSizePolicy.closestAspectRatio();
+        if (builder.zslFrameCount > 0) {
+            zslBuffer = new ZslBuffer(builder.zslFrameCount, builder.zslWindowMs);
+        }
+        if (builder.captureStore != null) {
+            captureStore = builder.captureStore;
+            capturePipeline.setCaptureStore(captureStore);
+        }
+        if (builder.dispatchPolicy != null) {
+            Executor executor = builder.dispatchExecutor;
+            if (executor == null) {
+                dispatchExecutor = Executors.newSingleThreadExecutor();
+                executor = dispatchExecutor;
+            }
+            frameDispatcher = new FrameDispatcher(builder.dispatchPolicy, builder.dispatchQueueCapacity,
+                    executor, frameSink, new FrameDispatcher.Recycler() {
+                @Override
+                public void recycle(byte[] data) {
+                    recycleBuffer(data);
+                }
+            });
+        }
+        cameraThread = new HandlerThread("CameraThread");
+        cameraThread.start();
+        cameraHandler = new Handler(cameraThread.getLooper());
         previewDisplayView.setSurfaceTextureListener(textureListener);
         if (isMirror) {
             previewDisplayView.setScaleX(-1);
         }
     }
 
+    /**
+     * 异步打开相机并开始预览，完成后回调{@link CameraListener#onCameraOpened}
+     */
     public void start() {
-        synchronized (this) {
-            if (mCamera != null) {
-                return;
+        cameraHandler.post(openCameraTask);
+    }
+
+    private final Runnable openCameraTask = new Runnable() {
+        @Override
+        public void run() {
+            openCamera();
+        }
+    };
+
+    private final Runnable closeCameraTask = new Runnable() {
+        @Override
+        public void run() {
+            closeCamera();
+        }
+    };
+
+    private void openCamera() {
+        if (mCamera != null || previewDisplayView == null) {
+            return;
+        }
+        //相机数量为2则打开1,1则打开0,相机ID 1为前置，0为后置
+        mCameraId = Camera.getNumberOfCameras() - 1;
+        //若指定了相机ID且该相机存在，则打开指定的相机
+        if (specificCameraId != null && specificCameraId <= mCameraId) {
+            mCameraId = specificCameraId;
+        }
+
+        //没有相机
+        if (mCameraId == -1) {
+            if (cameraListener != null) {
+                cameraListener.onCameraError(new Exception("camera not found"));
             }
-            //相机数量为2则打开1,1则打开0,相机ID 1为前置，0为后置
-            mCameraId = Camera.getNumberOfCameras() - 1;
-            //若指定了相机ID且该相机存在，则打开指定的相机
-            if (specificCameraId != null && specificCameraId <= mCameraId) {
-                mCameraId = specificCameraId;
+            return;
+        }
+        try {
+            //在相机线程中打开，预览回调也将在相机线程中执行
+            Camera camera = Camera.open(mCameraId);
+            synchronized (cameraLock) {
+                mCamera = camera;
             }
-
-            //没有相机
-            if (mCameraId == -1) {
-                if (cameraListener != null) {
-                    cameraListener.onCameraError(new Exception("camera not found"));
+            isStopped = false;
+            //缓存命中时尺寸、对焦模式、帧率都从缓存中选择，不解析HAL返回的参数列表
+            capabilities = capabilityCache == null ? null : capabilityCache.get(mCameraId);
+            Camera.Parameters parameters = null;
+            if (capabilities == null) {
+                parameters = mCamera.getParameters();
+                capabilities = CameraCapabilities.query(mCameraId, parameters);
+                if (capabilityCache != null) {
+                    capabilityCache.put(capabilities);
                 }
-                return;
-            }
-            if (mCamera == null) {
-                mCamera = Camera.open(mCameraId);
             }
             displayOrientation = getCameraOri(rotation);
             mCamera.setDisplayOrientation(displayOrientation);
-            try {
-                Camera.Parameters parameters = mCamera.getParameters();
-                parameters.setPreviewFormat(ImageFormat.NV21);
-
-                //预览大小设置
-                previewSize = parameters.getPreviewSize();
-                List<Camera.Size> supportedPreviewSizes = parameters.getSupportedPreviewSizes();
-                if (supportedPreviewSizes != null && supportedPreviewSizes.size() > 0) {
-                    previewSize = getBestSupportedSize(supportedPreviewSizes, previewViewSize);
-                }
-                parameters.setPreviewSize(previewSize.width, previewSize.height);
-
-                //对焦模式设置
-                List<String> supportedFocusModes = parameters.getSupportedFocusModes();
-                if (supportedFocusModes != null && supportedFocusModes.size() > 0) {
-                    if (supportedFocusModes.contains(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE)) {
-                        parameters.setFocusMode(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE);
-                    } else if (supportedFocusModes.contains(Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO)) {
-                        parameters.setFocusMode(Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO);
-                    } else if (supportedFocusModes.contains(Camera.Parameters.FOCUS_MODE_AUTO)) {
-                        parameters.setFocusMode(Camera.Parameters.FOCUS_MODE_AUTO);
-                    }
-                }
-                mCamera.setParameters(parameters);
-                mCamera.setPreviewTexture(previewDisplayView.getSurfaceTexture());
-                mCamera.setPreviewCallbackWithBuffer(this);
 
-                mCamera.addCallbackBuffer(new byte[previewSize.width * previewSize.height * 3 / 2]);
+            //预览大小设置，能力信息中的尺寸已按从大到小排好
+            previewSizeChoice = choosePreviewSize(capabilities.getPreviewSizes());
+            previewSize = mCamera.new Size(previewSizeChoice.getWidth(), previewSizeChoice.getHeight());
+            qualityAnalyzer.configure(previewSize.width, previewSize.height);
+            stabilityDetector.configure(previewSize.width, previewSize.height);
+            if (zslBuffer != null) {
+                zslBuffer.configure(previewSize.width, previewSize.height, displayOrientation, isMirror,
+                        capabilities.getFacing() == Camera.CameraInfo.CAMERA_FACING_FRONT);
+            }
 
-                mCamera.startPreview();
-                if (cameraListener != null) {
-                    cameraListener.onCameraOpened(mCamera, mCameraId, displayOrientation, isMirror);
-                }
-            } catch (Exception e) {
-                if (cameraListener != null) {
-                    cameraListener.onCameraError(e);
+            //对焦模式设置
+            String focusMode = null;
+            List<String> supportedFocusModes = capabilities.getFocusModes();
+            if (supportedFocusModes.contains(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE)) {
+                focusMode = Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE;
+            } else if (supportedFocusModes.contains(Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO)) {
+                focusMode = Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO;
+            } else if (supportedFocusModes.contains(Camera.Parameters.FOCUS_MODE_AUTO)) {
+                focusMode = Camera.Parameters.FOCUS_MODE_AUTO;
+            }
+
+            //Camera.Parameters只能通过getParameters()取得，设置参数前仍需调用一次；
+            //缓存省去的是解析支持的尺寸、对焦模式等列表，这次调用推迟到选择完成之后
+            if (parameters == null) {
+                parameters = mCamera.getParameters();
+            }
+            parameters.setPreviewFormat(ImageFormat.NV21);
+            parameters.setPreviewSize(previewSize.width, previewSize.height);
+            if (focusMode != null) {
+                parameters.setFocusMode(focusMode);
+            }
+            mCamera.setParameters(parameters);
+            mCamera.setPreviewTexture(previewDisplayView.getSurfaceTexture());
+            mCamera.setPreviewCallbackWithBuffer(this);
+
+            int maxFps = capabilities.getMaxFps();
+            bufferPool.setFrameInterval(maxFps > 0 ? 1000L * 1000_000_000L / maxFps : 0);
+            synchronized (cameraLock) {
+                bufferPool.prepare(previewSize.width * previewSize.height * 3 / 2);
+                byte[] buffer;
+                while ((buffer = bufferPool.pollFree()) != null) {
+                    mCamera.addCallbackBuffer(buffer);
                 }
             }
+
+            frameMetrics.onStreamRestarted();
+            mCamera.startPreview();
+            if (metricsLogIntervalMs > 0) {
+                cameraHandler.postDelayed(metricsLogTask, metricsLogIntervalMs);
+            }
+            if (cameraListener != null) {
+                cameraListener.onCameraOpened(mCamera, mCameraId, displayOrientation, isMirror, previewSizeChoice);
+            }
+        } catch (Exception e) {
+            if (cameraListener != null) {
+                cameraListener.onCameraError(e);
+            }
         }
     }
 
@@ -144,133 +279,280 @@ public class CameraHelper implements Camera.PreviewCallback {
         additionalRotation *= 90;
         degrees += additionalRotation;
         int result;
-        Camera.CameraInfo info = new Camera.CameraInfo();
-        Camera.getCameraInfo(mCameraId, info);
-        if (info.facing == Camera.CameraInfo.CAMERA_FACING_FRONT) {
-            result = (info.orientation + degrees) % 360;
+        //朝向和传感器方向取自打开相机时的能力信息，旋转时不再查询CameraInfo
+        int orientation = capabilities.getOrientation();
+        if (capabilities.getFacing() == Camera.CameraInfo.CAMERA_FACING_FRONT) {
+            result = (orientation + degrees) % 360;
             result = (360 - result) % 360;
         } else {
-            result = (info.orientation - degrees + 360) % 360;
+            result = (orientation - degrees + 360) % 360;
         }
         return result;
     }
 
+    /**
+     * 异步停止预览并关闭相机，完成后回调{@link CameraListener#onCameraClosed()}
+     */
     public void stop() {
-        synchronized (this) {
-            if (mCamera == null) {
-                return;
-            }
-            mCamera.setPreviewCallback(null);
-            mCamera.stopPreview();
-            mCamera.release();
+        cameraHandler.post(closeCameraTask);
+    }
+
+    private void closeCamera() {
+        if (mCamera == null) {
+            return;
+        }
+        isStopped = true;
+        cameraHandler.removeCallbacks(metricsLogTask);
+        Camera camera = mCamera;
+        synchronized (cameraLock) {
             mCamera = null;
-            if (cameraListener != null) {
-                cameraListener.onCameraClosed();
-            }
+            bufferPool.reset();
+        }
+        if (zslBuffer != null) {
+            zslBuffer.clear();
+        }
+        if (frameDispatcher != null) {
+            frameDispatcher.clear();
+        }
+        isTakingPicture = false;
+        if (payloadRequest != null && payloadRequest.pictureCallback != null) {
+            payloadRequest.pictureCallback.onPictureError(new IllegalStateException("camera closed before picture was taken"));
+        } else if (payloadRequest != null) {
+            payloadRequest.trace.finish(false);
+        }
+        payloadRequest = null;
+        if (burstCapture != null) {
+            burstCapture.fail(new IllegalStateException("camera closed during burst"));
+            burstCapture = null;
+        }
+        camera.setPreviewCallback(null);
+        camera.stopPreview();
+        camera.release();
+        if (cameraListener != null) {
+            cameraListener.onCameraClosed();
         }
     }
 
     public boolean isStopped() {
-        synchronized (this) {
-            return mCamera == null;
-        }
+        return isStopped;
     }
 
+    /**
+     * 异步关闭相机并释放资源，之前提交的操作执行完后相机线程退出
+     */
     public void release() {
-        synchronized (this) {
-            stop();
-            previewDisplayView = null;
-            specificCameraId = null;
-            cameraListener = null;
-            previewViewSize = null;
-            specificPreviewSize = null;
-            previewSize = null;
-        }
-    }
-
-    private Camera.Size getBestSupportedSize(List<Camera.Size> sizes, Point previewViewSize) {
-        if (sizes == null || sizes.size() == 0) {
-            return mCamera.getParameters().getPreviewSize();
-        }
-        Camera.Size[] tempSizes = sizes.toArray(new Camera.Size[0]);
-        Arrays.sort(tempSizes, new Comparator<Camera.Size>() {
+        cameraHandler.post(new Runnable() {
             @Override
-            public int compare(Camera.Size o1, Camera.Size o2) {
-                if (o1.width > o2.width) {
-                    return -1;
-                } else if (o1.width == o2.width) {
-                    return o1.height > o2.height ? -1 : 1;
-                } else {
-                    return 1;
+            public void run() {
+                closeCamera();
+                if (frameDispatcher != null) {
+                    frameDispatcher.shutdown();
+                }
+                if (dispatchExecutor != null) {
+                    dispatchExecutor.shutdown();
                 }
+                capturePipeline.shutdown();
+                burstExecutor.shutdown();
+                previewDisplayView = null;
+                specificCameraId = null;
+                cameraListener = null;
+                previewViewSize = null;
+                specificPreviewSize = null;
+                previewSize = null;
+                previewSizeChoice = null;
             }
         });
-        sizes = Arrays.asList(tempSizes);
-
-        Camera.Size bestSize = sizes.get(0);
-        float previewViewRatio;
-        if (previewViewSize != null) {
-            previewViewRatio = (float) previewViewSize.x / (float) previewViewSize.y;
-        } else {
-            previewViewRatio = (float) bestSize.width / (float) bestSize.height;
-        }
-
-        if (previewViewRatio > 1) {
-            previewViewRatio = 1 / previewViewRatio;
-        }
-        boolean isNormalRotate = (additionalRotation % 180 == 0);
+        cameraThread.quitSafely();
+    }
 
-        for (Camera.Size s : sizes) {
-            if (specificPreviewSize != null && specificPreviewSize.x == s.width && specificPreviewSize.y == s.height) {
-                return s;
-            }
-            if (isNormalRotate) {
-                if (Math.abs((s.height / (float) s.width) - previewViewRatio) < Math.abs(bestSize.height / (float) bestSize.width - previewViewRatio)) {
-                    bestSize = s;
-                }
-            } else {
-                if (Math.abs((s.width / (float) s.height) - previewViewRatio) < Math.abs(bestSize.width / (float) bestSize.height - previewViewRatio)) {
-                    bestSize = s;
+    /**
+     * 指定的预览尺寸优先，否则由{@link #previewSizePolicy}选择
+     */
+    private PreviewSizePolicy.Choice choosePreviewSize(int[] sizes) {
+        if (specificPreviewSize != null) {
+            for (int i = 0; i < sizes.length; i += 2) {
+                if (specificPreviewSize.x == sizes[i] && specificPreviewSize.y == sizes[i + 1]) {
+                    return new PreviewSizePolicy.Choice(sizes[i], sizes[i + 1], "specific preview size");
                 }
             }
         }
-        return bestSize;
+        int viewWidth = previewViewSize != null ? previewViewSize.x : 0;
+        int viewHeight = previewViewSize != null ? previewViewSize.y : 0;
+        PreviewSizePolicy.Choice choice = previewSizePolicy.choose(sizes, viewWidth, viewHeight, additionalRotation % 180 != 0);
+        Log.i(TAG, "preview size: " + choice);
+        return choice;
     }
 
+    /**
+     * @return 支持的预览尺寸，按宽度、高度从大到小排列，相机未打开时返回null
+     */
     public List<Camera.Size> getSupportedPreviewSizes() {
-        if (mCamera == null) {
+        CameraCapabilities caps = capabilities;
+        if (isStopped || caps == null) {
             return null;
         }
-        return mCamera.getParameters().getSupportedPreviewSizes();
+        return toSizeList(caps.getPreviewSizes());
     }
 
+    /**
+     * @return 支持的拍照尺寸，按宽度、高度从大到小排列，相机未打开时返回null
+     */
     public List<Camera.Size> getSupportedPictureSizes() {
-        if (mCamera == null) {
+        CameraCapabilities caps = capabilities;
+        if (isStopped || caps == null) {
             return null;
         }
-        return mCamera.getParameters().getSupportedPictureSizes();
+        return toSizeList(caps.getPictureSizes());
+    }
+
+    private List<Camera.Size> toSizeList(int[] sizes) {
+        Camera camera = mCamera;
+        if (camera == null) {
+            return null;
+        }
+        List<Camera.Size> list = new ArrayList<>(sizes.length / 2);
+        for (int i = 0; i < sizes.length; i += 2) {
+            list.add(camera.new Size(sizes[i], sizes[i + 1]));
+        }
+        return list;
     }
 
 
     @Override
     public void onPreviewFrame(byte[] nv21, Camera camera) {
-        camera.addCallbackBuffer(nv21);
+        long timestampNs = SystemClock.elapsedRealtimeNanos();
+        bufferPool.onFrameArrived(nv21, timestampNs);
+        frameMetrics.onFrameArrived(timestampNs);
+        if ((zslBuffer != null || qualityAnalyzer.hasListeners()) && !isTakingPicture) {
+            FrameQualityAnalyzer.Score score = qualityAnalyzer.analyze(nv21, timestampNs);
+            //不满足质量要求的帧不会被零延迟拍照选中
+            if (zslBuffer != null && score != null
+                    && (qualityThresholds == null || score.isAcceptable(qualityThresholds))) {
+                zslBuffer.offer(nv21, timestampNs, score.getFocus());
+            }
+        }
+        if (autoCaptureRequest != null && !isTakingPicture && stabilityDetector.update(nv21, timestampNs)) {
+            PayloadRequest request = autoCaptureRequest;
+            autoCaptureRequest = null;
+            capture(request);
+        }
+        if (burstCapture != null && burstCapture.offer(nv21, previewSize.width, previewSize.height,
+                displayOrientation, timestampNs)) {
+            burstCapture = null;
+        }
+        if (frameDispatcher != null) {
+            //异步分发，缓冲区在回调处理完后由recycleBuffer归还
+            frameDispatcher.dispatch(nv21);
+            return;
+        }
         if (cameraListener != null) {
+            long start = System.nanoTime();
             cameraListener.onPreview(nv21, camera);
+            frameMetrics.recordListenerTime(System.nanoTime() - start);
+        }
+        //回调处理完再归还缓冲区，处理期间相机使用池中其余缓冲区继续出帧
+        if (bufferPool.requeue(nv21)) {
+            camera.addCallbackBuffer(nv21);
         }
     }
 
+    private final FrameDispatcher.Sink frameSink = new FrameDispatcher.Sink() {
+        @Override
+        public void onFrame(byte[] data) {
+            CameraListener listener = cameraListener;
+            if (listener != null) {
+                long start = System.nanoTime();
+                listener.onPreview(data, mCamera);
+                frameMetrics.recordListenerTime(System.nanoTime() - start);
+            }
+        }
+
+        @Override
+        public void onFrameError(RuntimeException e) {
+            CameraListener listener = cameraListener;
+            if (listener != null) {
+                listener.onCameraError(e);
+            }
+        }
+    };
+
+    /**
+     * 在任意线程中归还缓冲区，相机已关闭时留在池中等待下次打开
+     */
+    private void recycleBuffer(byte[] buffer) {
+        synchronized (cameraLock) {
+            if (mCamera != null && bufferPool.requeue(buffer)) {
+                mCamera.addCallbackBuffer(buffer);
+            } else {
+                bufferPool.recycle(buffer);
+            }
+        }
+    }
+
+    /**
+     * 获取预览缓冲池的统计信息：送达帧数、因缓冲区不足丢弃的帧数、缓冲区占用情况
+     */
+    public PreviewBufferPool.Stats getPreviewStats() {
+        return bufferPool.getStats();
+    }
+
+    /**
+     * 获取预览流水线的性能统计：帧率、帧间隔抖动、回调耗时和缓冲区等待时间的分布以及丢帧数
+     */
+    public FrameMetrics.Snapshot getFrameMetrics() {
+        return frameMetrics.snapshot(bufferPool.getStats().framesDropped,
+                frameDispatcher != null ? frameDispatcher.getDroppedFrames() : 0);
+    }
+
+    /**
+     * 清空性能统计的分布数据，用于分段比较
+     */
+    public void resetFrameMetrics() {
+        frameMetrics.reset();
+    }
+
+    private final Runnable metricsLogTask = new Runnable() {
+        @Override
+        public void run() {
+            Log.i(TAG, "frame metrics: " + getFrameMetrics());
+            cameraHandler.postDelayed(this, metricsLogIntervalMs);
+        }
+    };
+
+    /**
+     * 添加预览帧质量监听，在相机线程中回调，有监听时每个预览帧都会被分析
+     */
+    public void addQualityListener(FrameQualityAnalyzer.Listener listener) {
+        qualityAnalyzer.addListener(listener);
+    }
+
+    public void removeQualityListener(FrameQualityAnalyzer.Listener listener) {
+        qualityAnalyzer.removeListener(listener);
+    }
+
+    /**
+     * 获取异步分发模式下因背压策略被丢弃的帧数，未开启异步分发时为0
+     */
+    public long getDispatchDroppedFrames() {
+        return frameDispatcher == null ? 0 : frameDispatcher.getDroppedFrames();
+    }
+
     private TextureView.SurfaceTextureListener textureListener = new TextureView.SurfaceTextureListener() {
         @Override
-        public void onSurfaceTextureAvailable(SurfaceTexture surfaceTexture, int width, int height) {
+        public void onSurfaceTextureAvailable(final SurfaceTexture surfaceTexture, int width, int height) {
 //            start();
-            if (mCamera != null) {
-                try {
-                    mCamera.setPreviewTexture(surfaceTexture);
-                } catch (IOException e) {
-                    e.printStackTrace();
+            cameraHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mCamera != null) {
+                        try {
+                            mCamera.setPreviewTexture(surfaceTexture);
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }
                 }
-            }
+            });
         }
 
         @Override
@@ -290,15 +572,24 @@ public class CameraHelper implements Camera.PreviewCallback {
         }
     };
 
-    public void changeDisplayOrientation(int rotation) {
-        if (mCamera != null) {
-            this.rotation = rotation;
-            displayOrientation = getCameraOri(rotation);
-            mCamera.setDisplayOrientation(displayOrientation);
-            if (cameraListener != null) {
-                cameraListener.onCameraConfigurationChanged(mCameraId, displayOrientation);
+    public void changeDisplayOrientation(final int rotation) {
+        cameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mCamera != null) {
+                    CameraHelper.this.rotation = rotation;
+                    displayOrientation = getCameraOri(rotation);
+                    mCamera.setDisplayOrientation(displayOrientation);
+                    if (zslBuffer != null) {
+                        zslBuffer.configure(previewSize.width, previewSize.height, displayOrientation, isMirror,
+                                capabilities.getFacing() == Camera.CameraInfo.CAMERA_FACING_FRONT);
+                    }
+                    if (cameraListener != null) {
+                        cameraListener.onCameraConfigurationChanged(mCameraId, displayOrientation);
+                    }
+                }
             }
-        }
+        });
     }
 
     public static final class Builder {
@@ -338,6 +629,61 @@ public class CameraHelper implements Camera.PreviewCallback {
          */
         private int additionalRotation;
 
+        /**
+         * 预览回调缓冲区数量，回调处理耗时超过一帧时由其余缓冲区继续接收数据
+         */
+        private int previewBufferCount = 3;
+
+        /**
+         * 预览数据的异步分发策略，为null时在相机线程中同步回调{@link CameraListener#onPreview}
+         */
+        private FrameDispatcher.BackpressurePolicy dispatchPolicy;
+
+        /**
+         * 异步分发时等待处理的最大帧数
+         */
+        private int dispatchQueueCapacity = 1;
+
+        /**
+         * 异步分发使用的线程池，为null时使用内部的单线程线程池
+         */
+        private Executor dispatchExecutor;
+
+        /**
+         * 照片存储记录，为null时第一次拍照时在默认目录创建
+         */
+        private CaptureStore captureStore;
+
+        /**
+         * 零延迟拍照保存的预览帧数，0表示不开启
+         */
+        private int zslFrameCount;
+
+        /**
+         * 零延迟拍照时选择最清晰帧的时间窗口
+         */
+        private long zslWindowMs = 500;
+
+        /**
+         * 零延迟拍照对预览帧的质量要求，为null时不限制
+         */
+        private FrameQualityAnalyzer.Thresholds qualityThresholds;
+
+        /**
+         * 相机能力信息缓存，为null时每次打开相机都重新查询
+         */
+        private CameraCapabilityCache capabilityCache;
+
+        /**
+         * 相机打开期间定期输出性能统计的间隔，0表示不输出
+         */
+        private long metricsLogIntervalMs;
+
+        /**
+         * 预览尺寸选择策略，为null时选择长宽比与控件最接近的最大尺寸
+         */
+        private PreviewSizePolicy previewSizePolicy;
+
         public Builder() {
         }
 
@@ -378,6 +724,69 @@ public class CameraHelper implements Camera.PreviewCallback {
             return this;
         }
 
+        public Builder previewBufferCount(int val) {
+            previewBufferCount = val;
+            return this;
+        }
+
+        public Builder previewDispatch(FrameDispatcher.BackpressurePolicy policy, int queueCapacity) {
+            dispatchPolicy = policy;
+            dispatchQueueCapacity = queueCapacity;
+            return this;
+        }
+
+        public Builder previewExecutor(Executor val) {
+            dispatchExecutor = val;
+            return this;
+        }
+
+        public Builder captureStore(CaptureStore val) {
+            captureStore = val;
+            return this;
+        }
+
+        /**
+         * 开启零延迟拍照：{@link #takeImage(Context, int, ImageEncoder, boolean, CapturePipeline.Callback)}
+         * 直接使用最近一段时间内最清晰的预览帧，输出为圆形区域的外接正方形，分辨率与预览相同；
+         * 没有可用的帧时仍调用{@link Camera#takePicture}
+         *
+         * @param frameCount 保存的预览帧数
+         * @param windowMs   选择的时间窗口
+         */
+        public Builder zeroShutterLag(int frameCount, long windowMs) {
+            zslFrameCount = frameCount;
+            zslWindowMs = windowMs;
+            return this;
+        }
+
+        public Builder qualityThresholds(FrameQualityAnalyzer.Thresholds val) {
+            qualityThresholds = val;
+            return this;
+        }
+
+        /**
+         * 相机打开期间每隔一段时间在日志中输出{@link CameraHelper#getFrameMetrics()}，用于比较不同设备
+         *
+         * @param intervalMs 输出间隔，0表示不输出
+         */
+        public Builder metricsLogInterval(long intervalMs) {
+            metricsLogIntervalMs = intervalMs;
+            return this;
+        }
+
+        /**
+         * 设置预览尺寸选择策略，{@link #previewSize(Point)}指定的尺寸受支持时优先使用
+         */
+        public Builder previewSizePolicy(PreviewSizePolicy val) {
+            previewSizePolicy = val;
+            return this;
+        }
+
+        public Builder capabilityCache(CameraCapabilityCache val) {
+            capabilityCache = val;
+            return this;
+        }
+
         public Builder cameraListener(CameraListener val) {
             cameraListener = val;
             return this;
@@ -397,47 +806,333 @@ public class CameraHelper implements Camera.PreviewCallback {
         }
     }
     public void takeImage(Context context) {
-        mContext=context;
-        mCamera.takePicture(null, null, mPicture);
+        takeImage(context, null);
+    }
+
+    /**
+     * 拍照并直接用回调中的jpeg数据生成缩放、编码后的结果，不经过磁盘读写
+     *
+     * @param context  上下文
+     * @param maxSide  缩放后长边的最大像素数
+     * @param encoder  编码器
+     * @param persist  是否同时在后台保存原图
+     * @param callback 结果回调，在主线程中执行
+     * @return 处理任务，拍照完成前也可以取消
+     */
+    public CapturePipeline.CaptureJob takeImage(Context context, int maxSide, ImageEncoder encoder, boolean persist,
+                                                CapturePipeline.Callback callback) {
+        PayloadRequest request = new PayloadRequest(maxSide, encoder, persist, circleOutput, callback);
+        takeImage(context, request);
+        return request.job;
+    }
+
+    private void takeImage(Context context, final PayloadRequest request) {
+        mContext = context;
+        if (request != null) {
+            request.trace = capturePipeline.getTracer().start("tap");
+        }
+        cameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                capture(request);
+            }
+        });
+    }
+
+    /**
+     * 在相机线程中拍照，开启零延迟拍照且有可用的帧时直接使用预览帧
+     */
+    private void capture(PayloadRequest request) {
+        if (request != null && request.pictureCallback == null && request.trace == null) {
+            request.trace = capturePipeline.getTracer().start("auto");
+        }
+        if (request != null && request.job != null && request.job.isCancelled()) {
+            request.trace.finish(false);
+            return;
+        }
+        if (request != null && request.pictureCallback == null && takeZslImage(request)) {
+            return;
+        }
+        //上一次拍照未完成时忽略，避免takePicture抛出异常
+        if (mCamera != null && !isTakingPicture) {
+            isTakingPicture = true;
+            payloadRequest = request;
+            mCamera.takePicture(null, null, mPicture);
+        } else if (request != null && request.pictureCallback != null) {
+            request.pictureCallback.onPictureError(new IllegalStateException(
+                    mCamera == null ? "camera not opened" : "another picture is being taken"));
+        } else if (request != null) {
+            request.trace.finish(false);
+        }
+    }
+
+    /**
+     * 拍照并直接返回jpeg数据，不保存文件也不经过处理流水线，结果在相机线程中回调
+     */
+    public void takePicture(final CameraSource.PictureCallback callback) {
+        cameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                capture(new PayloadRequest(callback));
+            }
+        });
+    }
+
+    /**
+     * 开启自动拍照：圆形区域内的画面保持稳定达到指定时间后自动拍照一次，之后自动关闭
+     *
+     * @param context  上下文
+     * @param holdMs   需要保持稳定的时间
+     * @param maxSide  缩放后长边的最大像素数
+     * @param encoder  编码器
+     * @param persist  是否同时在后台保存原图
+     * @param callback 结果回调，在主线程中执行
+     * @return 处理任务，取消后不再自动拍照
+     */
+    public CapturePipeline.CaptureJob startAutoCapture(Context context, final long holdMs, int maxSide,
+                                                       ImageEncoder encoder, boolean persist,
+                                                       CapturePipeline.Callback callback) {
+        mContext = context;
+        final PayloadRequest request = new PayloadRequest(maxSide, encoder, persist, circleOutput, callback);
+        cameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                stabilityDetector.setHoldTime(holdMs);
+                stabilityDetector.reset();
+                autoCaptureRequest = request;
+            }
+        });
+        return request.job;
+    }
+
+    /**
+     * 关闭尚未触发的自动拍照
+     */
+    public void stopAutoCapture() {
+        cameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                autoCaptureRequest = null;
+            }
+        });
+    }
+
+    /**
+     * 设置拍照结果只保留圆形区域，方向和镜像由拍照时的预览方向决定，之后发起的拍照请求生效
+     *
+     * @param circle 圆形输出的设置，为null时输出整张照片
+     */
+    public void setCircleOutput(CircleOutput circle) {
+        circleOutput = circle;
     }
+
+    /**
+     * 设置预览上圆的半径，清晰度评分、稳定检测和零延迟拍照只处理圆内的区域
+     *
+     * @param radiusRatio 半径与预览短边一半的比值，取值(0, 1]
+     */
+    public void setCircleRadiusRatio(final float radiusRatio) {
+        if (radiusRatio <= 0 || radiusRatio > 1) {
+            throw new IllegalArgumentException("radiusRatio must be in (0, 1]: " + radiusRatio);
+        }
+        cameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                qualityAnalyzer.setRadiusRatio(radiusRatio);
+                stabilityDetector.setRadiusRatio(radiusRatio);
+                if (zslBuffer != null) {
+                    zslBuffer.setRadiusRatio(radiusRatio);
+                }
+            }
+        });
+    }
+
+    /**
+     * 设置自动拍照时视为稳定的最大平均亮度差（0~255），默认为4
+     */
+    public void setStabilityThreshold(final float threshold) {
+        cameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                stabilityDetector.setThreshold(threshold);
+            }
+        });
+    }
+
+    /**
+     * 在相机线程中取出最清晰的预览帧交给处理流水线
+     *
+     * @return 没有可用的帧时返回false
+     */
+    private boolean takeZslImage(PayloadRequest request) {
+        if (zslBuffer == null || mCamera == null) {
+            return false;
+        }
+        long start = request.trace.beginSection(CaptureTrace.STAGE_ZSL_SELECT);
+        ZslBuffer.Frame frame = zslBuffer.takeSharpest(SystemClock.elapsedRealtimeNanos());
+        request.trace.endSection(CaptureTrace.STAGE_ZSL_SELECT, start, 0, frame != null ? frame.getSide() * frame.getSide() * 3 / 2 : 0);
+        if (frame == null) {
+            return false;
+        }
+        File persistTo = request.persist ? getOutputMediaFile(mContext) : null;
+        capturePipeline.processFrame(frame.getNv21(), frame.getSide(), frame.getSide(), new FrameDispatcher.Recycler() {
+            @Override
+            public void recycle(byte[] data) {
+                zslBuffer.release(data);
+            }
+        }, persistTo, request.maxSide, request.circle != null ? request.circle.forCroppedFrame() : null,
+                request.encoder, request.callback, request.trace, request.job);
+        return true;
+    }
+
+    /**
+     * 从预览帧连拍，不停止预览，帧率受预览帧率限制
+     *
+     * @param count      连拍帧数
+     * @param intervalMs 相邻两帧的目标间隔，0表示截取每个预览帧
+     * @param callback   结果回调，在主线程中执行
+     * @return 连拍任务，可用于取消
+     */
+    public BurstCapture takeBurst(int count, long intervalMs, BurstCapture.Callback callback) {
+        return takeBurst(count, intervalMs, BURST_MAX_IN_FLIGHT, BURST_JPEG_QUALITY, callback);
+    }
+
+    /**
+     * 从预览帧连拍
+     *
+     * @param count       连拍帧数
+     * @param intervalMs  相邻两帧的目标间隔，0表示截取每个预览帧
+     * @param maxInFlight 同时复制、编码中的最大帧数，决定连拍占用内存的上限
+     * @param quality     jpeg质量
+     * @param callback    结果回调，在主线程中执行
+     * @return 连拍任务，可用于取消
+     */
+    public BurstCapture takeBurst(int count, long intervalMs, int maxInFlight, int quality,
+                                  BurstCapture.Callback callback) {
+        final BurstCapture burst = new BurstCapture(count, intervalMs, maxInFlight, quality, burstExecutor, callback);
+        cameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mCamera == null) {
+                    burst.fail(new IllegalStateException("camera not opened"));
+                } else if (burstCapture != null && !burstCapture.isCancelled()) {
+                    burst.fail(new IllegalStateException("another burst is in progress"));
+                } else {
+                    burstCapture = burst;
+                }
+            }
+        });
+        return burst;
+    }
+
+    /**
+     * 获取拍照后的处理流水线，用于在后台缩放、编码照片
+     */
+    public CapturePipeline getCapturePipeline() {
+        return capturePipeline;
+    }
+
+    /**
+     * 获取照片存储记录，未指定且尚未拍照时为null
+     */
+    public CaptureStore getCaptureStore() {
+        return captureStore;
+    }
+
     Camera.PictureCallback mPicture = new Camera.PictureCallback() {
         @Override
         public void onPictureTaken(byte[] data, Camera camera) {
+            isTakingPicture = false;
+            //拍照会停止预览，重新开始以便连续拍摄
+            if (mCamera == camera) {
+                camera.startPreview();
+            }
+            PayloadRequest request = payloadRequest;
+            payloadRequest = null;
+            if (request != null && request.pictureCallback != null) {
+                request.pictureCallback.onPictureTaken(data);
+                return;
+            }
+            if (request != null) {
+                request.trace.record(CaptureTrace.STAGE_TAKE_PICTURE, request.trace.getStartNs(), 0, data.length);
+                File persistTo = request.persist ? getOutputMediaFile(mContext) : null;
+                //照片为传感器方向，按预览的显示方向旋转、镜像
+                CircleOutput circle = request.circle != null
+                        ? request.circle.forPreview(displayOrientation, isMirror,
+                        capabilities.getFacing() == Camera.CameraInfo.CAMERA_FACING_FRONT,
+                        previewSize.width, previewSize.height) : null;
+                capturePipeline.processBytes(data, persistTo, request.maxSide, circle, request.encoder,
+                        request.callback, request.trace, request.job);
+                return;
+            }
             File pictureFile = getOutputMediaFile(mContext);
             if (pictureFile == null){
                 return;
             }
-            try {
-                FileOutputStream fos = new FileOutputStream(pictureFile);
-                fos.write(data);
-                fos.close();
-                Log.e("iage", "Photo saved to folder \"Pictures\\MyCameraApp\"");
-            } catch (FileNotFoundException e) {
+            capturePipeline.write(data, pictureFile);
+        }
+    };
 
-            } catch (IOException e) {
+    private static final class PayloadRequest {
+        final int maxSide;
+        final ImageEncoder encoder;
+        final boolean persist;
+        final CapturePipeline.Callback callback;
+        /**
+         * 请求创建时的圆形输出设置
+         */
+        final CircleOutput circle;
+        /**
+         * 请求创建时就返回给调用方的任务，直接返回jpeg数据时为null
+         */
+        final CapturePipeline.CaptureJob job;
+        /**
+         * 不为null时直接返回jpeg数据，不经过处理流水线
+         */
+        final CameraSource.PictureCallback pictureCallback;
+        /**
+         * 拍照耗时记录，在点击或自动拍照触发时创建，直接返回jpeg数据时为null
+         */
+        CaptureTrace trace;
 
-            }
+        PayloadRequest(int maxSide, ImageEncoder encoder, boolean persist, CircleOutput circle,
+                       CapturePipeline.Callback callback) {
+            this.maxSide = maxSide;
+            this.encoder = encoder;
+            this.persist = persist;
+            this.callback = callback;
+            this.circle = circle;
+            this.job = new CapturePipeline.CaptureJob(callback);
+            this.pictureCallback = null;
         }
-    };
+
+        PayloadRequest(CameraSource.PictureCallback pictureCallback) {
+            this.maxSide = 0;
+            this.encoder = null;
+            this.persist = false;
+            this.callback = null;
+            this.circle = null;
+            this.job = null;
+            this.pictureCallback = pictureCallback;
+        }
+    }
     private File getOutputMediaFile(Context context){
-        /*File mediaStorageDir = new File(Environment.getExternalStoragePublicDirectory(
-                Environment.DIRECTORY_PICTURES), "magicLoan");*/
-        File mediaStorageDir = new File(context.getExternalFilesDir((Environment.DIRECTORY_PICTURES)), "magicLoan");
+        if (captureStore == null) {
+            /*File mediaStorageDir = new File(Environment.getExternalStoragePublicDirectory(
+                    Environment.DIRECTORY_PICTURES), "magicLoan");*/
+            captureStore = new CaptureStore.Builder()
+                    .directory(new File(context.getExternalFilesDir((Environment.DIRECTORY_PICTURES)), "magicLoan"))
+                    .build();
+            capturePipeline.setCaptureStore(captureStore);
+        }
+        File mediaStorageDir = captureStore.getDirectory();
         if (! mediaStorageDir.exists()){
             if (! mediaStorageDir.mkdirs()){
-                Log.d("MyCameraApp", "failed to create directory");
+                Log.w(TAG, "failed to create " + mediaStorageDir);
                 return null;
             }
         }
         // Create a media file name
-        String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
-        File mediaFile;
-        mediaFile = new File(mediaStorageDir.getPath() + File.separator +
-                "IMG_"+ timeStamp + ".jpg");
-
-        Log.e(TAG, "getOutputMediaFile>>> "+mediaFile);
-        // Save a file: path for use with ACTION_VIEW intents
-        imagesFilesPaths.add(mediaFile.getAbsolutePath());
-        return mediaFile;
+        return CaptureWriter.newCaptureFile(mediaStorageDir);
     }
 }
@@ -2,19 +2,23 @@ package com.vk.opencameraincircle;
 
 import android.hardware.Camera;
 
-
+/**
+ * {@link CameraHelper}的事件回调，除异步分发模式下的{@link #onPreview}外均在相机线程中执行，更新UI需切换到主线程
+ */
 public interface CameraListener {
     /**
-     * 当打开时执行
+     * 当打开时执行，在相机线程中回调，访问界面或主线程的状态需切换到主线程
      * @param camera 相机实例
      * @param cameraId 相机ID
      * @param displayOrientation 相机预览旋转角度
      * @param isMirror 是否镜像显示
+     * @param previewSize 选中的预览尺寸及选择原因
      */
-    void onCameraOpened(Camera camera, int cameraId, int displayOrientation, boolean isMirror);
+    void onCameraOpened(Camera camera, int cameraId, int displayOrientation, boolean isMirror,
+                        PreviewSizePolicy.Choice previewSize);
 
     /**
-     * 预览数据回调
+     * 预览数据回调，开启异步分发时在工作线程中执行。方法返回后data会被交还给相机，不能继续持有
      * @param data 预览数据
      * @param camera 相机实例
      */
@@ -0,0 +1,64 @@
+package com.vk.opencameraincircle;
+
+/**
+ * 相机数据源，屏蔽{@link android.hardware.Camera}和camera2的差异。预览帧以{@link CameraFrame}的平面形式提供，
+ * 拍照时不需要停止预览的实现会保持预览。实现有{@link LegacyCameraSource}、{@link Camera2Source}，
+ * 以及用于JVM单元测试的{@link FakeCameraSource}
+ */
+public interface CameraSource {
+
+    /**
+     * 数据源事件回调，在数据源的工作线程中执行
+     */
+    interface Listener {
+        /**
+         * 相机已打开并开始预览
+         *
+         * @param width              预览帧宽度
+         * @param height             预览帧高度
+         * @param displayOrientation 预览帧显示时需顺时针旋转的角度
+         * @param isMirror           是否镜像显示
+         */
+        void onSourceOpened(CameraSource source, int width, int height, int displayOrientation, boolean isMirror);
+
+        /**
+         * 预览帧回调，方法返回后frame及其平面数据不能继续持有
+         */
+        void onSourceFrame(CameraSource source, CameraFrame frame);
+
+        void onSourceClosed(CameraSource source);
+
+        void onSourceError(CameraSource source, Exception e);
+    }
+
+    /**
+     * 拍照结果回调，在数据源的工作线程中执行
+     */
+    interface PictureCallback {
+        void onPictureTaken(byte[] jpeg);
+
+        void onPictureError(Exception e);
+    }
+
+    void setListener(Listener listener);
+
+    /**
+     * 异步打开相机并开始预览
+     */
+    void start();
+
+    /**
+     * 异步停止预览并关闭相机
+     */
+    void stop();
+
+    /**
+     * 拍照，结果为jpeg数据
+     */
+    void takePicture(PictureCallback callback);
+
+    /**
+     * 关闭相机并释放资源，之后不能再使用
+     */
+    void release();
+}
@@ -0,0 +1,506 @@
+package com.vk.opencameraincircle;
+
+import android.graphics.Bitmap;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 拍照后的后台处理流水线：写文件 → 缩放 → 编码 → Base64。
+ * 写文件在IO线程中执行，其余步骤在计算线程中执行，结果在主线程中回调，主线程不做任何图片读写
+ */
+public class CapturePipeline {
+    /**
+     * nv21帧压缩为中间jpeg时的质量
+     */
+    private static final int FRAME_JPEG_QUALITY = 95;
+
+    /**
+     * 处理结果回调，在主线程中执行，任务被取消后不再回调
+     */
+    public interface Callback {
+        /**
+         * 处理完成
+         *
+         * @param job    处理任务
+         * @param base64 图片编码后的Base64文本
+         */
+        void onCaptureProcessed(CaptureJob job, String base64);
+
+        /**
+         * 处理失败
+         *
+         * @param job 处理任务
+         * @param e   异常
+         */
+        void onCaptureError(CaptureJob job, Exception e);
+    }
+
+    private final ExecutorService ioExecutor = Executors.newSingleThreadExecutor(new PipelineThreadFactory("CaptureIO"));
+    private final ExecutorService computeExecutor = Executors.newSingleThreadExecutor(new PipelineThreadFactory("CaptureCompute"));
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    /**
+     * 写文件的结果，提交新的写入时清理已完成的记录
+     */
+    private final Map<String, Future<?>> pendingWrites = new HashMap<>();
+    /**
+     * 正在处理的任务，每张照片最多一个
+     */
+    private final Map<String, CaptureJob> runningJobs = new HashMap<>();
+    private final AtomicInteger memoryJobId = new AtomicInteger();
+    private final CaptureWriter writer = new CaptureWriter(ioExecutor);
+    private final CaptureTracer tracer = new CaptureTracer();
+
+    /**
+     * 设置照片存储记录，写入完成的照片会被记录；同时在IO线程中扫描已有的照片
+     */
+    public void setCaptureStore(final CaptureStore store) {
+        writer.setCaptureStore(store);
+        if (store != null) {
+            ioExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    store.load();
+                }
+            });
+        }
+    }
+
+    /**
+     * 在IO线程中把jpeg数据写入文件，先写临时文件再重命名，写完整后才记录到照片存储
+     *
+     * @param jpeg 拍照得到的jpeg数据
+     * @param file 目标文件
+     */
+    public void write(byte[] jpeg, File file) {
+        write(jpeg, file, null);
+    }
+
+    void write(byte[] jpeg, File file, CaptureTrace trace) {
+        String path = file.getAbsolutePath();
+        synchronized (this) {
+            Iterator<Future<?>> iterator = pendingWrites.values().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().isDone()) {
+                    iterator.remove();
+                }
+            }
+            pendingWrites.put(path, writer.write(jpeg, file, trace));
+        }
+    }
+
+    /**
+     * 在后台缩放并编码照片，若该照片已有处理中的任务则直接返回该任务
+     *
+     * @param path     照片路径，可以是尚未写完的文件
+     * @param maxSide  缩放后长边的最大像素数
+     * @param encoder  编码器
+     * @param callback 结果回调，返回已有任务时不会重复注册
+     * @return 处理任务，可用于取消
+     */
+    public CaptureJob process(String path, int maxSide, ImageEncoder encoder, Callback callback) {
+        return process(path, maxSide, null, encoder, callback);
+    }
+
+    /**
+     * 与{@link #process(String, int, ImageEncoder, Callback)}相同，只输出圆形区域
+     *
+     * @param circle 圆形输出的设置，为null时输出整张照片
+     */
+    public CaptureJob process(final String path, final int maxSide, final CircleOutput circle,
+                              final ImageEncoder encoder, Callback callback) {
+        return submit(path, new BitmapSource() {
+            @Override
+            Bitmap decode(CaptureTrace trace) throws Exception {
+                long start = System.nanoTime();
+                awaitWrite(path);
+                trace.record(CaptureTrace.STAGE_AWAIT_WRITE, start, 0, 0);
+                checkCancelled();
+                start = trace.beginSection(CaptureTrace.STAGE_DECODE);
+                Bitmap bitmap = null;
+                try {
+                    bitmap = circle != null ? circle.decode(path, maxSide, encoder.supportsAlpha())
+                            : ImageUtil.decodeScaled(path, maxSide);
+                    return bitmap;
+                } finally {
+                    trace.endSection(CaptureTrace.STAGE_DECODE, start, new File(path).length(), byteCount(bitmap));
+                }
+            }
+        }, encoder, callback, tracer.start("file"), null);
+    }
+
+    /**
+     * 直接用拍照回调中的jpeg数据缩放、编码，不经过磁盘读写
+     *
+     * @param jpeg      拍照得到的jpeg数据
+     * @param persistTo 需要保存原图时的目标文件，在IO线程中异步写入，不影响处理结果的返回；为null时不保存
+     * @param maxSide   缩放后长边的最大像素数
+     * @param encoder   编码器
+     * @param callback  结果回调
+     * @return 处理任务，保存原图时以文件路径标识
+     */
+    public CaptureJob processBytes(byte[] jpeg, File persistTo, int maxSide, ImageEncoder encoder,
+                                   Callback callback) {
+        return processBytes(jpeg, persistTo, maxSide, null, encoder, callback);
+    }
+
+    /**
+     * 与{@link #processBytes(byte[], File, int, ImageEncoder, Callback)}相同，只解码并输出圆形区域，保存的仍是原图
+     *
+     * @param circle 圆形输出的设置，为null时输出整张照片
+     */
+    public CaptureJob processBytes(byte[] jpeg, File persistTo, int maxSide, CircleOutput circle,
+                                   ImageEncoder encoder, Callback callback) {
+        return processBytes(jpeg, persistTo, maxSide, circle, encoder, callback, tracer.start("bytes"), null);
+    }
+
+    CaptureJob processBytes(final byte[] jpeg, File persistTo, final int maxSide, final CircleOutput circle,
+                            final ImageEncoder encoder, Callback callback, CaptureTrace trace, CaptureJob job) {
+        String path;
+        if (persistTo != null) {
+            write(jpeg, persistTo, trace);
+            path = persistTo.getAbsolutePath();
+        } else {
+            path = "memory:" + memoryJobId.incrementAndGet();
+        }
+        return submit(path, new BitmapSource() {
+            @Override
+            Bitmap decode(CaptureTrace trace) throws IOException {
+                return decodeScaled(jpeg, maxSide, circle, encoder.supportsAlpha(), trace);
+            }
+        }, encoder, callback, trace, job);
+    }
+
+    /**
+     * 处理一帧nv21数据，如零延迟拍照时取出的预览帧。在计算线程中先压缩为jpeg，之后与{@link #processBytes}相同
+     *
+     * @param nv21      nv21数据
+     * @param width     宽度
+     * @param height    高度
+     * @param recycler  压缩完成后归还nv21数据，任务在开始前被取消时也会归还
+     * @param persistTo 需要保存时的目标文件，为null时不保存
+     * @param maxSide   缩放后长边的最大像素数
+     * @param encoder   编码器
+     * @param callback  结果回调
+     * @return 处理任务
+     */
+    public CaptureJob processFrame(byte[] nv21, int width, int height, FrameDispatcher.Recycler recycler,
+                                   File persistTo, int maxSide, ImageEncoder encoder, Callback callback) {
+        return processFrame(nv21, width, height, recycler, persistTo, maxSide, null, encoder, callback);
+    }
+
+    /**
+     * 与{@link #processFrame(byte[], int, int, FrameDispatcher.Recycler, File, int, ImageEncoder, Callback)}相同，
+     * 只输出圆形区域
+     *
+     * @param circle 圆形输出的设置，为null时输出整帧；帧已按显示方向旋转时方向应为0
+     */
+    public CaptureJob processFrame(byte[] nv21, int width, int height, FrameDispatcher.Recycler recycler,
+                                   File persistTo, int maxSide, CircleOutput circle, ImageEncoder encoder,
+                                   Callback callback) {
+        return processFrame(nv21, width, height, recycler, persistTo, maxSide, circle, encoder, callback,
+                tracer.start("frame"), null);
+    }
+
+    CaptureJob processFrame(final byte[] nv21, final int width, final int height,
+                            final FrameDispatcher.Recycler recycler, final File persistTo, final int maxSide,
+                            final CircleOutput circle, final ImageEncoder encoder, Callback callback,
+                            CaptureTrace trace, CaptureJob job) {
+        String path = persistTo != null ? persistTo.getAbsolutePath() : "memory:" + memoryJobId.incrementAndGet();
+        return submit(path, new BitmapSource() {
+            private final AtomicBoolean released = new AtomicBoolean();
+
+            @Override
+            Bitmap decode(CaptureTrace trace) throws Exception {
+                byte[] jpeg = null;
+                long start = trace.beginSection(CaptureTrace.STAGE_COMPRESS);
+                try {
+                    jpeg = compressFrame(nv21, width, height);
+                } finally {
+                    discard();
+                    trace.endSection(CaptureTrace.STAGE_COMPRESS, start, nv21.length, jpeg != null ? jpeg.length : 0);
+                }
+                if (persistTo != null) {
+                    write(jpeg, persistTo, trace);
+                }
+                checkCancelled();
+                return decodeScaled(jpeg, maxSide, circle, encoder.supportsAlpha(), trace);
+            }
+
+            @Override
+            void discard() {
+                if (released.compareAndSet(false, true)) {
+                    recycler.recycle(nv21);
+                }
+            }
+        }, encoder, callback, trace, job);
+    }
+
+    private static byte[] compressFrame(byte[] nv21, int width, int height) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(width * height / 2);
+        YuvImage image = new YuvImage(nv21, ImageFormat.NV21, width, height, null);
+        if (!image.compressToJpeg(new Rect(0, 0, width, height), FRAME_JPEG_QUALITY, out)) {
+            throw new IOException("failed to compress frame " + width + "x" + height);
+        }
+        return out.toByteArray();
+    }
+
+    private static Bitmap decodeScaled(byte[] jpeg, int maxSide, CircleOutput circle, boolean alpha,
+                                       CaptureTrace trace) throws IOException {
+        long start = trace.beginSection(CaptureTrace.STAGE_DECODE);
+        Bitmap bitmap = null;
+        try {
+            bitmap = circle != null ? circle.decode(jpeg, maxSide, alpha) : ImageUtil.decodeScaled(jpeg, maxSide);
+            return bitmap;
+        } finally {
+            trace.endSection(CaptureTrace.STAGE_DECODE, start, jpeg.length, byteCount(bitmap));
+        }
+    }
+
+    private static long byteCount(Bitmap bitmap) {
+        return bitmap != null ? bitmap.getByteCount() : 0;
+    }
+
+    /**
+     * 在计算线程中得到缩放后的图片
+     */
+    private abstract static class BitmapSource {
+        /**
+         * @param trace 拍照耗时记录，用于记录解码及之前的阶段
+         */
+        abstract Bitmap decode(CaptureTrace trace) throws Exception;
+
+        /**
+         * 任务未执行就被取消或被已有任务取代时调用，用于释放输入数据
+         */
+        void discard() {
+        }
+    }
+
+    /**
+     * @param pending 调用方预先创建的任务，已被取消时不再处理；为null时新建任务
+     */
+    private CaptureJob submit(final String path, final BitmapSource source, final ImageEncoder encoder,
+                              Callback callback, final CaptureTrace trace, CaptureJob pending) {
+        synchronized (this) {
+            if (pending != null && pending.isCancelled()) {
+                source.discard();
+                trace.finish(false);
+                return pending;
+            }
+            CaptureJob running = runningJobs.get(path);
+            if (pending == null && running != null && !running.isCancelled()) {
+                source.discard();
+                trace.finish(false);
+                return running;
+            }
+            final CaptureJob job = pending != null ? pending : new CaptureJob(callback);
+            job.path = path;
+            runningJobs.put(path, job);
+            FutureTask<Void> task = new FutureTask<Void>(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Bitmap bitmap = source.decode(trace);
+                        if (bitmap == null) {
+                            throw new IOException("failed to decode " + path);
+                        }
+                        checkCancelled();
+                        String base64 = null;
+                        long start = trace.beginSection(CaptureTrace.STAGE_ENCODE);
+                        try {
+                            base64 = ImageUtil.convert(bitmap, encoder);
+                        } finally {
+                            trace.endSection(CaptureTrace.STAGE_ENCODE, start, bitmap.getByteCount(),
+                                    base64 != null ? base64.length() : 0);
+                        }
+                        bitmap.recycle();
+                        checkCancelled();
+                        deliver(job, base64, null, trace);
+                    } catch (InterruptedIOException e) {
+                        finish(job);
+                        trace.finish(false);
+                    } catch (Exception e) {
+                        deliver(job, null, e, trace);
+                    }
+                }
+            }, null) {
+                @Override
+                protected void done() {
+                    if (isCancelled()) {
+                        source.discard();
+                        trace.finish(false);
+                    }
+                }
+            };
+            job.future = task;
+            if (job.isCancelled()) {
+                //提交前的任务在设置future之前被取消
+                task.cancel(true);
+            }
+            computeExecutor.execute(task);
+            return job;
+        }
+    }
+
+    private void awaitWrite(String path) throws Exception {
+        Future<?> write;
+        synchronized (this) {
+            write = pendingWrites.get(path);
+        }
+        if (write == null) {
+            return;
+        }
+        try {
+            write.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        } catch (CancellationException e) {
+            throw new IOException("write cancelled: " + path);
+        }
+    }
+
+    private static void checkCancelled() throws InterruptedIOException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    private void deliver(final CaptureJob job, final String base64, final Exception e, final CaptureTrace trace) {
+        finish(job);
+        final long start = System.nanoTime();
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (job.isCancelled() || job.callback == null) {
+                    trace.finish(false);
+                    return;
+                }
+                if (e == null) {
+                    job.callback.onCaptureProcessed(job, base64);
+                } else {
+                    job.callback.onCaptureError(job, e);
+                }
+                trace.record(CaptureTrace.STAGE_DELIVER, start, 0, 0);
+                trace.finish(e == null);
+            }
+        });
+    }
+
+    private void finish(CaptureJob job) {
+        synchronized (this) {
+            if (runningJobs.get(job.path) == job) {
+                runningJobs.remove(job.path);
+            }
+        }
+    }
+
+    /**
+     * 获取拍照耗时记录的汇总
+     */
+    public CaptureTracer getTracer() {
+        return tracer;
+    }
+
+    /**
+     * 该照片是否有处理中的任务
+     */
+    public synchronized boolean isProcessing(String path) {
+        return runningJobs.containsKey(path);
+    }
+
+    /**
+     * 取消所有处理中的任务并停止线程，已提交的写文件操作仍会完成
+     */
+    public void shutdown() {
+        synchronized (this) {
+            for (CaptureJob job : runningJobs.values()) {
+                job.cancel();
+            }
+            runningJobs.clear();
+        }
+        computeExecutor.shutdownNow();
+        ioExecutor.shutdown();
+    }
+
+    /**
+     * 一张照片的处理任务
+     */
+    public static final class CaptureJob {
+        private volatile String path;
+        private final Callback callback;
+        private volatile boolean cancelled;
+        private volatile Future<?> future;
+
+        /**
+         * 创建尚未提交的任务，用于拍照完成前就需要可取消的场景，如{@link CameraHelper#takeImage}
+         */
+        CaptureJob(Callback callback) {
+            this.callback = callback;
+        }
+
+        /**
+         * @return 照片路径，尚未提交时为null
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * 取消任务，取消后不再回调；尚未提交时之后也不会再处理
+         */
+        public void cancel() {
+            cancelled = true;
+            Future<?> f = future;
+            if (f != null) {
+                f.cancel(true);
+            }
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    private static final class PipelineThreadFactory implements ThreadFactory {
+        private final String name;
+
+        PipelineThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, name);
+        }
+    }
+}
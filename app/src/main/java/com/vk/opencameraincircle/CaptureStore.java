@@ -0,0 +1,344 @@
+package com.vk.opencameraincircle;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.ExifInterface;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 照片存储记录，线程安全。按数量、总大小、保存时长淘汰最旧的照片并删除文件，
+ * 同时缓存最近照片的缩略图（优先使用jpeg内嵌的EXIF缩略图），查看时不需要解码原图
+ */
+public class CaptureStore {
+    private static final String TAG = "CaptureStore";
+
+    private final File directory;
+    private final int maxCount;
+    private final long maxBytes;
+    private final long maxAgeMillis;
+    private final int thumbnailSize;
+    /**
+     * 按保存时间从旧到新排列
+     */
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    private long totalBytes;
+    private final LruCache<String, Bitmap> thumbnails;
+
+    private CaptureStore(Builder builder) {
+        directory = builder.directory;
+        maxCount = builder.maxCount;
+        maxBytes = builder.maxBytes;
+        maxAgeMillis = builder.maxAgeMillis;
+        thumbnailSize = builder.thumbnailSize;
+        thumbnails = new LruCache<String, Bitmap>(builder.thumbnailCacheBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getByteCount();
+            }
+        };
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * 扫描目录中已有的照片并按规则淘汰，同时删除上次异常退出时残留的临时文件，涉及磁盘读写，需在后台线程中调用
+     */
+    public void load() {
+        File[] temps = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(CaptureWriter.TEMP_SUFFIX);
+            }
+        });
+        if (temps != null) {
+            for (File temp : temps) {
+                if (!temp.delete()) {
+                    Log.w(TAG, "failed to delete " + temp);
+                }
+            }
+        }
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(".jpg");
+            }
+        });
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File o1, File o2) {
+                long t1 = o1.lastModified();
+                long t2 = o2.lastModified();
+                return t1 < t2 ? -1 : (t1 == t2 ? 0 : 1);
+            }
+        });
+        synchronized (this) {
+            //本进程中已记录的照片仍算作本次拍摄
+            Set<String> captured = new HashSet<>();
+            for (Entry entry : entries) {
+                if (!entry.restored) {
+                    captured.add(entry.path);
+                }
+            }
+            entries.clear();
+            totalBytes = 0;
+            for (File file : files) {
+                String path = file.getAbsolutePath();
+                entries.addLast(new Entry(path, file.length(), file.lastModified(), !captured.contains(path)));
+                totalBytes += file.length();
+            }
+            trim(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * 记录一张已完整写入的照片，之后按规则淘汰最旧的照片
+     *
+     * @param file 照片文件
+     */
+    public void add(File file) {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            String path = file.getAbsolutePath();
+            removeEntry(path);
+            entries.addLast(new Entry(path, file.length(), now, false));
+            totalBytes += file.length();
+            trim(now);
+        }
+    }
+
+    /**
+     * 按数量、总大小、保存时长淘汰照片，至少保留最新的一张
+     */
+    private void trim(long now) {
+        while (entries.size() > 1) {
+            Entry oldest = entries.peekFirst();
+            boolean expired = maxAgeMillis > 0 && now - oldest.timestamp > maxAgeMillis;
+            if (entries.size() <= maxCount && totalBytes <= maxBytes && !expired) {
+                break;
+            }
+            entries.pollFirst();
+            totalBytes -= oldest.size;
+            thumbnails.remove(oldest.path);
+            if (!new File(oldest.path).delete()) {
+                Log.w(TAG, "failed to delete " + oldest.path);
+            }
+        }
+    }
+
+    private void removeEntry(String path) {
+        Iterator<Entry> iterator = entries.iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.path.equals(path)) {
+                iterator.remove();
+                totalBytes -= entry.size;
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return 最新一张照片的路径，没有时返回null
+     */
+    public synchronized String latest() {
+        Entry entry = entries.peekLast();
+        return entry == null ? null : entry.path;
+    }
+
+    /**
+     * @return 本进程中通过{@link #add(File)}记录的最新一张照片的路径，不包括{@link #load()}从磁盘恢复的照片，没有时返回null
+     */
+    public synchronized String latestCaptured() {
+        Iterator<Entry> iterator = entries.descendingIterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (!entry.restored) {
+                return entry.path;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param count 最多返回的数量
+     * @return 最近的照片路径，从新到旧排列
+     */
+    public synchronized List<String> recent(int count) {
+        List<String> paths = new ArrayList<>(Math.min(count, entries.size()));
+        Iterator<Entry> iterator = entries.descendingIterator();
+        while (iterator.hasNext() && paths.size() < count) {
+            paths.add(iterator.next().path);
+        }
+        return paths;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * 获取照片的缩略图，未缓存时优先读取EXIF内嵌缩略图，没有时按采样率解码，需在后台线程中调用
+     *
+     * @param path 照片路径
+     * @return 缩略图，无法解码时返回null
+     */
+    public Bitmap getThumbnail(String path) {
+        Bitmap thumbnail = thumbnails.get(path);
+        if (thumbnail != null) {
+            return thumbnail;
+        }
+        thumbnail = decodeExifThumbnail(path);
+        if (thumbnail == null) {
+            thumbnail = ImageUtil.decodeScaled(path, thumbnailSize);
+        }
+        if (thumbnail != null) {
+            synchronized (this) {
+                //解码期间照片可能已被淘汰
+                if (contains(path)) {
+                    thumbnails.put(path, thumbnail);
+                }
+            }
+        }
+        return thumbnail;
+    }
+
+    private boolean contains(String path) {
+        for (Entry entry : entries) {
+            if (entry.path.equals(path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Bitmap decodeExifThumbnail(String path) {
+        try {
+            ExifInterface exif = new ExifInterface(path);
+            byte[] data = exif.hasThumbnail() ? exif.getThumbnail() : null;
+            if (data == null) {
+                return null;
+            }
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                return null;
+            }
+            options.inSampleSize = ImageUtil.calculateInSampleSize(Math.max(options.outWidth, options.outHeight), thumbnailSize);
+            options.inJustDecodeBounds = false;
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        } catch (IOException e) {
+            Log.w(TAG, "failed to read exif thumbnail of " + path, e);
+            return null;
+        }
+    }
+
+    private static final class Entry {
+        final String path;
+        final long size;
+        final long timestamp;
+        /**
+         * 由{@link #load()}从磁盘恢复，不是本进程拍摄的
+         */
+        final boolean restored;
+
+        Entry(String path, long size, long timestamp, boolean restored) {
+            this.path = path;
+            this.size = size;
+            this.timestamp = timestamp;
+            this.restored = restored;
+        }
+    }
+
+    public static final class Builder {
+        /**
+         * 照片保存的目录
+         */
+        private File directory;
+        /**
+         * 最多保留的照片数量
+         */
+        private int maxCount = 20;
+        /**
+         * 照片总大小上限
+         */
+        private long maxBytes = 200L * 1024 * 1024;
+        /**
+         * 照片最长保留时间，0表示不限制
+         */
+        private long maxAgeMillis = 24L * 60 * 60 * 1000;
+        /**
+         * 缩略图缓存的内存上限
+         */
+        private int thumbnailCacheBytes = 4 * 1024 * 1024;
+        /**
+         * 缩略图长边的最大像素数
+         */
+        private int thumbnailSize = 320;
+
+        public Builder() {
+        }
+
+        public Builder directory(File val) {
+            directory = val;
+            return this;
+        }
+
+        public Builder maxCount(int val) {
+            maxCount = val;
+            return this;
+        }
+
+        public Builder maxBytes(long val) {
+            maxBytes = val;
+            return this;
+        }
+
+        public Builder maxAgeMillis(long val) {
+            maxAgeMillis = val;
+            return this;
+        }
+
+        public Builder thumbnailCacheBytes(int val) {
+            thumbnailCacheBytes = val;
+            return this;
+        }
+
+        public Builder thumbnailSize(int val) {
+            thumbnailSize = val;
+            return this;
+        }
+
+        public CaptureStore build() {
+            if (directory == null) {
+                throw new IllegalArgumentException("directory must not be null");
+            }
+            if (maxCount < 1 || maxBytes <= 0 || thumbnailCacheBytes <= 0 || thumbnailSize <= 0) {
+                throw new IllegalArgumentException("limits must be positive");
+            }
+            return new CaptureStore(this);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.vk.opencameraincircle;
+
+import android.os.Build;
+import android.os.Trace;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 一次拍照从点击到得到Base64结果的分阶段耗时记录，由{@link CaptureTracer#start(String)}创建，可以跨线程使用。
+ * 同一线程内的阶段同时输出为systrace中的section，整个拍照在Android Q及以上输出为异步section
+ */
+public final class CaptureTrace {
+    /**
+     * 从点击到拍照回调返回jpeg数据
+     */
+    public static final String STAGE_TAKE_PICTURE = "takePicture";
+    /**
+     * 从零延迟拍照缓存中取出最清晰的预览帧
+     */
+    public static final String STAGE_ZSL_SELECT = "zslSelect";
+    /**
+     * 预览帧压缩为jpeg
+     */
+    public static final String STAGE_COMPRESS = "compressFrame";
+    /**
+     * 原图写入文件，从所在的一组写入开始到重命名完成
+     */
+    public static final String STAGE_WRITE = "write";
+    /**
+     * 从文件处理时等待写入完成
+     */
+    public static final String STAGE_AWAIT_WRITE = "awaitWrite";
+    /**
+     * 按采样率解码并缩放，圆形输出时包括区域解码、旋转和遮罩
+     */
+    public static final String STAGE_DECODE = "decode";
+    /**
+     * 编码并转为Base64
+     */
+    public static final String STAGE_ENCODE = "encode";
+    /**
+     * 从计算线程切换到主线程并执行回调
+     */
+    public static final String STAGE_DELIVER = "deliver";
+
+    private static final String ASYNC_SECTION = "capture";
+
+    private final CaptureTracer tracer;
+    private final int id;
+    private final String source;
+    private final long startNs;
+    private final List<Span> spans = new ArrayList<>();
+    private long totalNs = -1;
+    private boolean completed;
+
+    CaptureTrace(CaptureTracer tracer, int id, String source) {
+        this.tracer = tracer;
+        this.id = id;
+        this.source = source;
+        this.startNs = System.nanoTime();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.beginAsyncSection(ASYNC_SECTION, id);
+        }
+    }
+
+    /**
+     * 开始一个在当前线程内完成的阶段，必须在同一线程中调用{@link #endSection}
+     *
+     * @return 开始时间，传给{@link #endSection}
+     */
+    public long beginSection(String stage) {
+        Trace.beginSection(stage);
+        return System.nanoTime();
+    }
+
+    /**
+     * 结束{@link #beginSection}开始的阶段
+     *
+     * @param bytesIn  输入数据大小，未知时为0
+     * @param bytesOut 输出数据大小，未知时为0
+     */
+    public void endSection(String stage, long startNs, long bytesIn, long bytesOut) {
+        Trace.endSection();
+        record(stage, startNs, bytesIn, bytesOut);
+    }
+
+    /**
+     * 记录一个从startNs到现在的阶段，用于跨回调、跨线程的阶段，不输出systrace section。
+     * 拍照结束后记录的阶段（如后台写原图）只计入阶段统计
+     */
+    public void record(String stage, long startNs, long bytesIn, long bytesOut) {
+        Span span = new Span(stage, startNs - this.startNs, System.nanoTime() - startNs, bytesIn, bytesOut);
+        synchronized (this) {
+            spans.add(span);
+        }
+        tracer.onStage(this, span);
+    }
+
+    /**
+     * 拍照结束，只在第一次调用时生效
+     *
+     * @param completed 是否得到了结果，取消或失败时为false
+     */
+    public void finish(boolean completed) {
+        synchronized (this) {
+            if (totalNs >= 0) {
+                return;
+            }
+            totalNs = System.nanoTime() - startNs;
+            this.completed = completed;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.endAsyncSection(ASYNC_SECTION, id);
+        }
+        tracer.onFinished(this);
+    }
+
+    /**
+     * @return 开始时间，{@link System#nanoTime()}
+     */
+    long getStartNs() {
+        return startNs;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return 拍照的触发方式，如点击或自动拍照
+     */
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * @return 总耗时，未结束时为-1
+     */
+    public synchronized long getTotalNs() {
+        return totalNs;
+    }
+
+    public synchronized boolean isCompleted() {
+        return completed;
+    }
+
+    public synchronized List<Span> getSpans() {
+        return new ArrayList<>(spans);
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("capture#").append(id).append(' ').append(source)
+                .append(completed ? " total=" : " aborted=").append(totalNs / 1000_000).append("ms");
+        for (Span span : spans) {
+            builder.append("\n  ").append(span);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * 一个阶段的耗时和输入输出数据大小
+     */
+    public static final class Span {
+        public final String stage;
+        /**
+         * 相对拍照开始的时间
+         */
+        public final long offsetNs;
+        public final long durationNs;
+        public final long bytesIn;
+        public final long bytesOut;
+
+        Span(String stage, long offsetNs, long durationNs, long bytesIn, long bytesOut) {
+            this.stage = stage;
+            this.offsetNs = offsetNs;
+            this.durationNs = durationNs;
+            this.bytesIn = bytesIn;
+            this.bytesOut = bytesOut;
+        }
+
+        @Override
+        public String toString() {
+            return stage + " +" + offsetNs / 1000_000 + "ms " + durationNs / 1000 / 1000.0 + "ms "
+                    + bytesIn + "B -> " + bytesOut + "B";
+        }
+    }
+}
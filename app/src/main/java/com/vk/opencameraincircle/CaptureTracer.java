@@ -0,0 +1,174 @@
+package com.vk.opencameraincircle;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 汇总拍照耗时记录：每个阶段的耗时分布和平均输入输出大小、总耗时分布、超出目标耗时的次数以及最近几次拍照的明细，
+ * 由{@link CapturePipeline#getTracer()}获取
+ */
+public class CaptureTracer {
+    private static final String TAG = "CaptureTracer";
+    private static final int MAX_RECENT = 8;
+
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final Map<String, StageStats> stages = new LinkedHashMap<>();
+    private final LatencyHistogram total = new LatencyHistogram();
+    private final AtomicLong sloViolations = new AtomicLong();
+    private final ArrayDeque<CaptureTrace> recent = new ArrayDeque<>(MAX_RECENT);
+    private volatile long sloNs;
+
+    /**
+     * 开始记录一次拍照
+     *
+     * @param source 触发方式，用于区分报告中的记录
+     */
+    public CaptureTrace start(String source) {
+        return new CaptureTrace(this, nextId.incrementAndGet(), source);
+    }
+
+    /**
+     * 设置从点击到得到结果的目标耗时，超出时输出警告并计数
+     *
+     * @param totalMs 目标耗时，0表示不检查
+     */
+    public void setSlo(long totalMs) {
+        if (totalMs < 0) {
+            throw new IllegalArgumentException("slo must not be negative");
+        }
+        sloNs = TimeUnit.MILLISECONDS.toNanos(totalMs);
+    }
+
+    void onStage(CaptureTrace trace, CaptureTrace.Span span) {
+        StageStats stats;
+        synchronized (stages) {
+            stats = stages.get(span.stage);
+            if (stats == null) {
+                stats = new StageStats();
+                stages.put(span.stage, stats);
+            }
+        }
+        stats.time.record(span.durationNs);
+        stats.bytesIn.addAndGet(span.bytesIn);
+        stats.bytesOut.addAndGet(span.bytesOut);
+    }
+
+    void onFinished(CaptureTrace trace) {
+        synchronized (recent) {
+            if (recent.size() == MAX_RECENT) {
+                recent.pollFirst();
+            }
+            recent.addLast(trace);
+        }
+        if (!trace.isCompleted()) {
+            return;
+        }
+        total.record(trace.getTotalNs());
+        long slo = sloNs;
+        if (slo > 0 && trace.getTotalNs() > slo) {
+            sloViolations.incrementAndGet();
+            Log.w(TAG, "capture exceeded " + slo / 1000_000 + "ms: " + trace);
+        } else {
+            Log.d(TAG, trace.toString());
+        }
+    }
+
+    public Report getReport() {
+        List<StageReport> stageReports = new ArrayList<>();
+        synchronized (stages) {
+            for (Map.Entry<String, StageStats> entry : stages.entrySet()) {
+                StageStats stats = entry.getValue();
+                stageReports.add(new StageReport(entry.getKey(), stats.time.snapshot(), stats.bytesIn.get(),
+                        stats.bytesOut.get()));
+            }
+        }
+        List<CaptureTrace> traces;
+        synchronized (recent) {
+            traces = new ArrayList<>(recent);
+        }
+        return new Report(total.snapshot(), stageReports, sloNs, sloViolations.get(), traces);
+    }
+
+    private static final class StageStats {
+        final LatencyHistogram time = new LatencyHistogram();
+        final AtomicLong bytesIn = new AtomicLong();
+        final AtomicLong bytesOut = new AtomicLong();
+    }
+
+    /**
+     * 一个阶段的汇总
+     */
+    public static final class StageReport {
+        public final String stage;
+        public final LatencyHistogram.Snapshot time;
+        public final long totalBytesIn;
+        public final long totalBytesOut;
+
+        StageReport(String stage, LatencyHistogram.Snapshot time, long totalBytesIn, long totalBytesOut) {
+            this.stage = stage;
+            this.time = time;
+            this.totalBytesIn = totalBytesIn;
+            this.totalBytesOut = totalBytesOut;
+        }
+
+        public long getAverageBytesIn() {
+            return time.getCount() == 0 ? 0 : totalBytesIn / time.getCount();
+        }
+
+        public long getAverageBytesOut() {
+            return time.getCount() == 0 ? 0 : totalBytesOut / time.getCount();
+        }
+
+        @Override
+        public String toString() {
+            return stage + ": " + time + " in=" + getAverageBytesIn() + "B out=" + getAverageBytesOut() + "B";
+        }
+    }
+
+    /**
+     * 拍照耗时报告
+     */
+    public static final class Report {
+        /**
+         * 完成的拍照的总耗时分布
+         */
+        public final LatencyHistogram.Snapshot total;
+        public final List<StageReport> stages;
+        public final long sloNs;
+        public final long sloViolations;
+        /**
+         * 最近结束的拍照，从旧到新
+         */
+        public final List<CaptureTrace> recent;
+
+        Report(LatencyHistogram.Snapshot total, List<StageReport> stages, long sloNs, long sloViolations,
+               List<CaptureTrace> recent) {
+            this.total = total;
+            this.stages = stages;
+            this.sloNs = sloNs;
+            this.sloViolations = sloViolations;
+            this.recent = recent;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append("total: ").append(total);
+            if (sloNs > 0) {
+                builder.append(" slo=").append(sloNs / 1000_000).append("ms violations=").append(sloViolations);
+            }
+            for (StageReport stage : stages) {
+                builder.append('\n').append(stage);
+            }
+            return builder.toString();
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package com.vk.opencameraincircle;
+
+import android.os.Trace;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 照片写入器。先通过FileChannel写入同目录下的临时文件，同步到存储后再重命名为正式文件，
+ * 进程崩溃或断电时不会留下写了一半的照片；连拍时把一组照片的同步集中在全部写完之后进行。
+ * 只有重命名成功的照片才会记录到{@link CaptureStore}
+ */
+public class CaptureWriter {
+    private static final String TAG = "CaptureWriter";
+    static final String TEMP_SUFFIX = ".tmp";
+    /**
+     * 一组最多同时打开的文件数
+     */
+    private static final int MAX_GROUP_SIZE = 8;
+
+    private static final Object NAME_LOCK = new Object();
+    private static long lastNameMillis;
+    private static int nameSequence;
+
+    private final Executor ioExecutor;
+    private final ArrayDeque<Request> queue = new ArrayDeque<>();
+    private final Object lock = new Object();
+    private boolean draining;
+    private volatile CaptureStore captureStore;
+
+    /**
+     * @param ioExecutor 执行写入的线程池，应为单线程
+     */
+    public CaptureWriter(Executor ioExecutor) {
+        this.ioExecutor = ioExecutor;
+    }
+
+    public void setCaptureStore(CaptureStore store) {
+        captureStore = store;
+    }
+
+    /**
+     * 生成不重复的照片文件名，同一毫秒内的多张照片按序号区分，时间回拨时仍保持递增
+     *
+     * @param directory 照片目录
+     * @return 照片文件（尚未创建）
+     */
+    public static File newCaptureFile(File directory) {
+        long millis;
+        int sequence;
+        synchronized (NAME_LOCK) {
+            millis = Math.max(System.currentTimeMillis(), lastNameMillis);
+            if (millis == lastNameMillis) {
+                nameSequence++;
+            } else {
+                nameSequence = 0;
+            }
+            lastNameMillis = millis;
+            sequence = nameSequence;
+        }
+        String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss_SSS", Locale.US).format(new Date(millis));
+        File file = new File(directory, "IMG_" + timeStamp + "_" + sequence + ".jpg");
+        //进程重启后同一毫秒的名字可能已存在
+        while (file.exists() || new File(file.getPath() + TEMP_SUFFIX).exists()) {
+            synchronized (NAME_LOCK) {
+                sequence = ++nameSequence;
+            }
+            file = new File(directory, "IMG_" + timeStamp + "_" + sequence + ".jpg");
+        }
+        return file;
+    }
+
+    /**
+     * 提交写入请求
+     *
+     * @param jpeg   照片数据
+     * @param target 目标文件
+     * @return 写入结果，完成时返回目标文件
+     */
+    public Future<File> write(byte[] jpeg, File target) {
+        return write(jpeg, target, null);
+    }
+
+    /**
+     * 提交写入请求，写入成功后在trace中记录{@link CaptureTrace#STAGE_WRITE}阶段
+     *
+     * @param jpeg   照片数据
+     * @param target 目标文件
+     * @param trace  拍照耗时记录，可以为null
+     * @return 写入结果，完成时返回目标文件
+     */
+    public Future<File> write(byte[] jpeg, File target, CaptureTrace trace) {
+        Request request = new Request(jpeg, target, trace);
+        boolean schedule = false;
+        synchronized (lock) {
+            queue.addLast(request);
+            if (!draining) {
+                draining = true;
+                schedule = true;
+            }
+        }
+        if (schedule) {
+            try {
+                ioExecutor.execute(drainTask);
+            } catch (RejectedExecutionException e) {
+                //线程池已关闭，没有线程会再处理队列
+                failQueued(null, new IOException("capture writer is shut down", e));
+            }
+        }
+        return request;
+    }
+
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            List<Request> group = new ArrayList<>(MAX_GROUP_SIZE);
+            Exception error = null;
+            boolean drained = false;
+            try {
+                while (true) {
+                    synchronized (lock) {
+                        while (group.size() < MAX_GROUP_SIZE && !queue.isEmpty()) {
+                            group.add(queue.pollFirst());
+                        }
+                        if (group.isEmpty()) {
+                            draining = false;
+                            drained = true;
+                            return;
+                        }
+                    }
+                    Trace.beginSection("CaptureWriter.writeGroup");
+                    try {
+                        writeGroup(group);
+                    } finally {
+                        Trace.endSection();
+                    }
+                    group.clear();
+                }
+            } catch (RuntimeException e) {
+                //不再抛出，避免线程池线程因未捕获异常导致进程退出
+                Log.e(TAG, "write group failed", e);
+                error = e;
+            } finally {
+                if (!drained) {
+                    //本组和队列中剩余的请求都失败，等待结果的线程不会一直阻塞，之后的写入重新调度
+                    failQueued(group, error != null ? error : new IOException("capture writer stopped"));
+                }
+            }
+        }
+    };
+
+    /**
+     * 让指定的一组和队列中所有未完成的请求失败，并允许之后的写入重新调度
+     */
+    private void failQueued(List<Request> group, Exception e) {
+        List<Request> remaining;
+        synchronized (lock) {
+            remaining = new ArrayList<>(queue);
+            queue.clear();
+            draining = false;
+        }
+        if (group != null) {
+            for (Request request : group) {
+                if (!request.isDone()) {
+                    fail(request, e);
+                }
+            }
+        }
+        for (Request request : remaining) {
+            fail(request, e);
+        }
+    }
+
+    private void writeGroup(List<Request> group) {
+        long startNs = System.nanoTime();
+        //先把整组数据写入临时文件
+        for (Request request : group) {
+            request.temp = new File(request.target.getPath() + TEMP_SUFFIX);
+            try {
+                request.stream = new FileOutputStream(request.temp);
+                FileChannel channel = request.stream.getChannel();
+                ByteBuffer buffer = ByteBuffer.wrap(request.jpeg);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } catch (IOException e) {
+                fail(request, e);
+            }
+        }
+        //再集中同步到存储
+        for (Request request : group) {
+            if (request.stream == null) {
+                continue;
+            }
+            try {
+                request.stream.getChannel().force(false);
+                request.stream.close();
+                request.stream = null;
+            } catch (IOException e) {
+                fail(request, e);
+            }
+        }
+        //全部落盘后重命名并记录
+        for (Request request : group) {
+            if (request.isDone()) {
+                continue;
+            }
+            if (!request.temp.renameTo(request.target)) {
+                fail(request, new IOException("failed to rename " + request.temp + " to " + request.target));
+                continue;
+            }
+            CaptureStore store = captureStore;
+            if (store != null) {
+                store.add(request.target);
+            }
+            if (request.trace != null) {
+                request.trace.record(CaptureTrace.STAGE_WRITE, startNs, request.jpeg.length, request.jpeg.length);
+            }
+            request.complete(null);
+        }
+    }
+
+    private static void fail(Request request, Exception e) {
+        Log.e(TAG, "write failed: " + request.target, e);
+        if (request.stream != null) {
+            try {
+                request.stream.close();
+            } catch (IOException ignored) {
+            }
+            request.stream = null;
+        }
+        if (request.temp != null && request.temp.exists() && !request.temp.delete()) {
+            Log.w(TAG, "failed to delete " + request.temp);
+        }
+        request.complete(e);
+    }
+
+    /**
+     * 一张照片的写入请求及其结果
+     */
+    private static final class Request implements Future<File> {
+        final byte[] jpeg;
+        final File target;
+        final CaptureTrace trace;
+        File temp;
+        FileOutputStream stream;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Exception error;
+
+        Request(byte[] jpeg, File target, CaptureTrace trace) {
+            this.jpeg = jpeg;
+            this.target = target;
+            this.trace = trace;
+        }
+
+        void complete(Exception e) {
+            error = e;
+            done.countDown();
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        @Override
+        public File get() throws InterruptedException, ExecutionException {
+            done.await();
+            return result();
+        }
+
+        @Override
+        public File get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (!done.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            return result();
+        }
+
+        private File result() throws ExecutionException {
+            if (error != null) {
+                throw new ExecutionException(error);
+            }
+            return target;
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package com.vk.opencameraincircle;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.BitmapShader;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.Shader;
+
+import java.io.IOException;
+
+/**
+ * 只输出圆形预览区域的外接正方形，而不是整张照片。
+ * <p>
+ * 取图片中心边长为短边乘以半径比例的正方形，与{@link Nv21CircleCropper}的约定相同，照片与预览帧宽高比不同时
+ * 以预览帧在照片中对应的区域为准；只解码这一区域，
+ * 缩放后顺时针旋转orientation度，mirror为true时再水平翻转。开启遮罩时圆外像素在支持透明的格式（WebP、PNG）
+ * 中为透明，在JPEG中填充为背景色，圆的边缘抗锯齿
+ */
+public final class CircleOutput {
+    private final float radiusRatio;
+    private final boolean mask;
+    private final int background;
+    private final int orientation;
+    private final boolean mirror;
+    /**
+     * 用户看到的预览帧尺寸（传感器方向），圆按预览帧定义；为0时图片本身就是预览画面
+     */
+    private final int previewWidth;
+    private final int previewHeight;
+
+    private CircleOutput(Builder builder) {
+        radiusRatio = builder.radiusRatio;
+        mask = builder.mask;
+        background = builder.background;
+        orientation = ((builder.orientation % 360) + 360) % 360;
+        mirror = builder.mirror;
+        previewWidth = 0;
+        previewHeight = 0;
+    }
+
+    private CircleOutput(CircleOutput source, float radiusRatio, int orientation, boolean mirror,
+                         int previewWidth, int previewHeight) {
+        this.radiusRatio = radiusRatio;
+        mask = source.mask;
+        background = source.background;
+        this.orientation = ((orientation % 360) + 360) % 360;
+        this.mirror = mirror;
+        this.previewWidth = previewWidth;
+        this.previewHeight = previewHeight;
+    }
+
+    /**
+     * 复制其余设置，替换为拍照时的方向
+     */
+    CircleOutput withOrientation(int orientation, boolean mirror) {
+        return new CircleOutput(this, radiusRatio, orientation, mirror, previewWidth, previewHeight);
+    }
+
+    /**
+     * 用于已按圆裁剪、旋转和镜像的帧（如零延迟拍照的帧）：整张帧就是圆的外接正方形，不再裁剪和旋转
+     */
+    CircleOutput forCroppedFrame() {
+        return new CircleOutput(this, 1f, 0, false, 0, 0);
+    }
+
+    /**
+     * 复制其余设置，替换为与相机预览一致的方向。照片与预览帧同为传感器方向；
+     * 前置相机的预览由系统先水平翻转再旋转，等价于逆时针旋转displayOrientation度后再水平翻转
+     *
+     * 照片与预览帧宽高比不同时，圆按预览帧在照片中对应的区域计算
+     *
+     * @param displayOrientation 预览的显示方向
+     * @param isMirror           预览是否镜像显示
+     * @param frontFacing        是否为前置相机
+     * @param previewWidth       预览帧宽度（传感器方向）
+     * @param previewHeight      预览帧高度（传感器方向）
+     */
+    CircleOutput forPreview(int displayOrientation, boolean isMirror, boolean frontFacing,
+                            int previewWidth, int previewHeight) {
+        int orientation = ((displayOrientation % 360) + 360) % 360;
+        if (frontFacing) {
+            return new CircleOutput(this, radiusRatio, (360 - orientation) % 360, !isMirror,
+                    previewWidth, previewHeight);
+        }
+        return new CircleOutput(this, radiusRatio, orientation, isMirror, previewWidth, previewHeight);
+    }
+
+    public float getRadiusRatio() {
+        return radiusRatio;
+    }
+
+    public boolean isMask() {
+        return mask;
+    }
+
+    public int getOrientation() {
+        return orientation;
+    }
+
+    public boolean isMirror() {
+        return mirror;
+    }
+
+    /**
+     * @return 图片中圆形外接正方形的区域
+     */
+    Rect squareIn(int width, int height) {
+        int side = squareSide(width, height);
+        int left = (width - side) / 2;
+        int top = (height - side) / 2;
+        return new Rect(left, top, left + side, top + side);
+    }
+
+    /**
+     * 圆形外接正方形的边长。照片和预览帧都是传感器画面居中、宽高比各自的最大区域，
+     * 预览帧在照片中对应居中的、预览宽高比的最大区域，圆的直径为该区域短边乘以半径比例
+     *
+     * @param width  图片宽度
+     * @param height 图片高度
+     */
+    int squareSide(int width, int height) {
+        long visibleWidth = width;
+        long visibleHeight = height;
+        if (previewWidth > 0 && previewHeight > 0) {
+            if ((long) width * previewHeight > (long) height * previewWidth) {
+                //照片更宽，预览只对应中间部分的宽度
+                visibleWidth = (long) height * previewWidth / previewHeight;
+            } else {
+                visibleHeight = (long) width * previewHeight / previewWidth;
+            }
+        }
+        return Math.max(1, Math.round(Math.min(visibleWidth, visibleHeight) * radiusRatio));
+    }
+
+    /**
+     * 从jpeg数据中只解码圆形区域并生成输出
+     *
+     * @param maxSide 输出边长的最大像素数
+     * @param alpha   输出格式是否支持透明
+     * @return 无法解码时返回null
+     */
+    Bitmap decode(byte[] jpeg, int maxSide, boolean alpha) throws IOException {
+        return decode(BitmapRegionDecoder.newInstance(jpeg, 0, jpeg.length, false), maxSide, alpha);
+    }
+
+    /**
+     * 与{@link #decode(byte[], int, boolean)}相同，从文件解码
+     */
+    Bitmap decode(String path, int maxSide, boolean alpha) throws IOException {
+        return decode(BitmapRegionDecoder.newInstance(path, false), maxSide, alpha);
+    }
+
+    private Bitmap decode(BitmapRegionDecoder decoder, int maxSide, boolean alpha) {
+        Bitmap square;
+        try {
+            Rect region = squareIn(decoder.getWidth(), decoder.getHeight());
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = ImageUtil.calculateInSampleSize(region.width(), maxSide);
+            square = decoder.decodeRegion(region, options);
+        } finally {
+            decoder.recycle();
+        }
+        if (square == null) {
+            return null;
+        }
+        return render(ImageUtil.scaleToFit(square, maxSide), alpha);
+    }
+
+    /**
+     * 旋转、翻转并按需加遮罩，不需要任何处理时直接返回原图，否则回收原图
+     */
+    private Bitmap render(Bitmap square, boolean alpha) {
+        if (!mask && orientation == 0 && !mirror) {
+            return square;
+        }
+        int side = square.getWidth();
+        float center = side / 2f;
+        Matrix matrix = new Matrix();
+        matrix.postRotate(orientation, center, center);
+        if (mirror) {
+            matrix.postScale(-1, 1, center, center);
+        }
+        Bitmap output = Bitmap.createBitmap(side, side, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(output);
+        Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
+        if (mask) {
+            if (!alpha) {
+                canvas.drawColor(background);
+            }
+            //用图片作为着色器画圆，边缘由抗锯齿得到部分透明或与背景混合的过渡
+            BitmapShader shader = new BitmapShader(square, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
+            shader.setLocalMatrix(matrix);
+            paint.setShader(shader);
+            canvas.drawCircle(center, center, center, paint);
+        } else {
+            canvas.drawBitmap(square, matrix, paint);
+        }
+        square.recycle();
+        return output;
+    }
+
+    public static final class Builder {
+        /**
+         * 半径与图片短边一半的比值，取值(0, 1]，与预览控件上圆角半径的比例一致
+         */
+        private float radiusRatio = 1f;
+        /**
+         * 是否去掉圆外的像素
+         */
+        private boolean mask = true;
+        /**
+         * 开启遮罩且输出为JPEG时圆外的颜色
+         */
+        private int background = Color.WHITE;
+        /**
+         * 顺时针旋转的角度，取值0、90、180、270；通过{@link CameraHelper}拍照时使用预览的显示方向
+         */
+        private int orientation;
+        /**
+         * 旋转后是否水平翻转；通过{@link CameraHelper}拍照时与预览一致
+         */
+        private boolean mirror;
+
+        public Builder() {
+        }
+
+        public Builder radiusRatio(float val) {
+            radiusRatio = val;
+            return this;
+        }
+
+        public Builder mask(boolean val) {
+            mask = val;
+            return this;
+        }
+
+        public Builder background(int val) {
+            background = val;
+            return this;
+        }
+
+        public Builder orientation(int val) {
+            orientation = val;
+            return this;
+        }
+
+        public Builder mirror(boolean val) {
+            mirror = val;
+            return this;
+        }
+
+        public CircleOutput build() {
+            if (radiusRatio <= 0 || radiusRatio > 1) {
+                throw new IllegalArgumentException("radiusRatio must be in (0, 1]: " + radiusRatio);
+            }
+            if (orientation % 90 != 0) {
+                throw new IllegalArgumentException("orientation must be a multiple of 90: " + orientation);
+            }
+            return new CircleOutput(this);
+        }
+    }
+}
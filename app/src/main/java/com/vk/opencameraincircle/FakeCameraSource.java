@@ -0,0 +1,123 @@
+package com.vk.opencameraincircle;
+
+/**
+ * 内存中的相机数据源，不依赖Android，用于在JVM上测试{@link CameraSource}的使用方。
+ * 所有回调都在调用线程中同步执行，预览帧由{@link #emitFrame(byte[], long)}手动送入
+ */
+public class FakeCameraSource implements CameraSource {
+    private final int width;
+    private final int height;
+    private final int displayOrientation;
+    private final boolean isMirror;
+    private final CameraFrame frame = new CameraFrame();
+    private Listener listener;
+    private byte[] pictureData;
+    private boolean started;
+    private boolean released;
+    private int framesEmitted;
+
+    /**
+     * @param width              预览帧宽度
+     * @param height             预览帧高度
+     * @param displayOrientation 回调给使用方的显示方向
+     * @param isMirror           回调给使用方的镜像设置
+     */
+    public FakeCameraSource(int width, int height, int displayOrientation, boolean isMirror) {
+        this.width = width;
+        this.height = height;
+        this.displayOrientation = displayOrientation;
+        this.isMirror = isMirror;
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * 设置拍照时返回的数据，为null时拍照失败
+     */
+    public void setPictureData(byte[] jpeg) {
+        pictureData = jpeg;
+    }
+
+    @Override
+    public void start() {
+        if (released) {
+            throw new IllegalStateException("source released");
+        }
+        if (started) {
+            return;
+        }
+        started = true;
+        if (listener != null) {
+            listener.onSourceOpened(this, width, height, displayOrientation, isMirror);
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (!started) {
+            return;
+        }
+        started = false;
+        if (listener != null) {
+            listener.onSourceClosed(this);
+        }
+    }
+
+    /**
+     * 送入一个预览帧，未开始预览时忽略
+     *
+     * @param nv21        nv21数据
+     * @param timestampNs 帧的时间
+     * @return 是否已回调给使用方
+     */
+    public boolean emitFrame(byte[] nv21, long timestampNs) {
+        if (!started || listener == null) {
+            return false;
+        }
+        if (nv21.length < width * height * 3 / 2) {
+            throw new IllegalArgumentException("frame too small: " + nv21.length);
+        }
+        frame.setNv21(nv21, width, height, timestampNs);
+        framesEmitted++;
+        listener.onSourceFrame(this, frame);
+        return true;
+    }
+
+    /**
+     * 模拟相机出错
+     */
+    public void emitError(Exception e) {
+        if (listener != null) {
+            listener.onSourceError(this, e);
+        }
+    }
+
+    @Override
+    public void takePicture(PictureCallback callback) {
+        if (!started) {
+            callback.onPictureError(new IllegalStateException("camera not opened"));
+        } else if (pictureData == null) {
+            callback.onPictureError(new IllegalStateException("no picture data"));
+        } else {
+            callback.onPictureTaken(pictureData.clone());
+        }
+    }
+
+    @Override
+    public void release() {
+        stop();
+        released = true;
+        listener = null;
+    }
+
+    public boolean isStarted() {
+        return started;
+    }
+
+    public int getFramesEmitted() {
+        return framesEmitted;
+    }
+}
@@ -0,0 +1,199 @@
+package com.vk.opencameraincircle;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * 预览帧异步分发器，把相机线程收到的帧交给工作线程处理，相机线程不等待回调执行。
+ * 帧缓冲区在{@link Sink#onFrame(byte[])}返回后才通过{@link Recycler}归还，处理期间不会被相机覆盖
+ */
+public class FrameDispatcher {
+
+    /**
+     * 工作线程处理不过来时的背压策略
+     */
+    public enum BackpressurePolicy {
+        /**
+         * 只保留最新的一帧，未处理的旧帧直接归还给相机
+         */
+        KEEP_LATEST,
+        /**
+         * 按顺序排队，队列满时丢弃新到达的帧
+         */
+        BOUNDED_QUEUE,
+        /**
+         * 按顺序排队，队列满时阻塞相机线程直到有空位
+         */
+        BLOCK
+    }
+
+    /**
+     * 帧的处理方，在工作线程中执行
+     */
+    public interface Sink {
+        /**
+         * 处理一帧数据，返回后缓冲区即被归还，不能在返回后继续持有
+         *
+         * @param data 预览数据
+         */
+        void onFrame(byte[] data);
+
+        /**
+         * 处理帧时抛出异常
+         *
+         * @param e 异常
+         */
+        void onFrameError(RuntimeException e);
+    }
+
+    /**
+     * 缓冲区的归还方，处理完或被丢弃的帧都会交给它
+     */
+    public interface Recycler {
+        void recycle(byte[] data);
+    }
+
+    private final BackpressurePolicy policy;
+    private final int capacity;
+    private final Executor executor;
+    private final Sink sink;
+    private final Recycler recycler;
+    private final ArrayDeque<byte[]> pending;
+    private final Object lock = new Object();
+    private boolean draining;
+    private boolean shutdown;
+    private long droppedFrames;
+
+    /**
+     * @param policy   背压策略
+     * @param capacity 等待处理的最大帧数，{@link BackpressurePolicy#KEEP_LATEST}时固定为1
+     * @param executor 执行处理的线程池，多线程线程池中也会按顺序逐帧处理
+     * @param sink     帧的处理方
+     * @param recycler 缓冲区的归还方
+     */
+    public FrameDispatcher(BackpressurePolicy policy, int capacity, Executor executor, Sink sink, Recycler recycler) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        this.policy = policy;
+        this.capacity = policy == BackpressurePolicy.KEEP_LATEST ? 1 : capacity;
+        this.executor = executor;
+        this.sink = sink;
+        this.recycler = recycler;
+        this.pending = new ArrayDeque<>(this.capacity + 1);
+    }
+
+    /**
+     * 在相机线程中调用，提交一帧数据
+     *
+     * @param data 预览数据，所有权交给分发器
+     */
+    public void dispatch(byte[] data) {
+        byte[] dropped = null;
+        boolean schedule = false;
+        synchronized (lock) {
+            if (policy == BackpressurePolicy.BLOCK) {
+                while (!shutdown && pending.size() >= capacity) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+            if (shutdown) {
+                dropped = data;
+            } else if (pending.size() < capacity) {
+                pending.addLast(data);
+            } else if (policy == BackpressurePolicy.KEEP_LATEST) {
+                dropped = pending.pollFirst();
+                pending.addLast(data);
+            } else {
+                dropped = data;
+            }
+            if (dropped != null) {
+                droppedFrames++;
+            }
+            if (!draining && !pending.isEmpty()) {
+                draining = true;
+                schedule = true;
+            }
+        }
+        if (dropped != null) {
+            recycler.recycle(dropped);
+        }
+        if (schedule) {
+            try {
+                executor.execute(drainTask);
+            } catch (RejectedExecutionException e) {
+                synchronized (lock) {
+                    draining = false;
+                }
+                clear();
+            }
+        }
+    }
+
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                byte[] frame;
+                synchronized (lock) {
+                    frame = pending.pollFirst();
+                    if (frame == null) {
+                        draining = false;
+                        return;
+                    }
+                    lock.notifyAll();
+                }
+                try {
+                    sink.onFrame(frame);
+                } catch (RuntimeException e) {
+                    sink.onFrameError(e);
+                } finally {
+                    recycler.recycle(frame);
+                }
+            }
+        }
+    };
+
+    /**
+     * 丢弃所有尚未处理的帧并归还缓冲区
+     */
+    public void clear() {
+        while (true) {
+            byte[] frame;
+            synchronized (lock) {
+                frame = pending.pollFirst();
+                if (frame == null) {
+                    lock.notifyAll();
+                    return;
+                }
+            }
+            recycler.recycle(frame);
+        }
+    }
+
+    /**
+     * 停止分发，之后提交的帧直接归还
+     */
+    public void shutdown() {
+        synchronized (lock) {
+            shutdown = true;
+            lock.notifyAll();
+        }
+        clear();
+    }
+
+    /**
+     * @return 因背压策略被丢弃、未交给处理方的帧数
+     */
+    public long getDroppedFrames() {
+        synchronized (lock) {
+            return droppedFrames;
+        }
+    }
+}
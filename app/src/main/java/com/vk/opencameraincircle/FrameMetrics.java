@@ -0,0 +1,115 @@
+package com.vk.opencameraincircle;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 预览帧流水线的性能统计：帧序号、帧间隔、回调处理耗时和相机等待缓冲区的时间，由{@link CameraHelper}在每一帧中记录。
+ * 帧到达只在相机线程中记录，其余统计可以在任意线程中记录
+ */
+public class FrameMetrics {
+    private final AtomicLong sequence = new AtomicLong();
+    private final LatencyHistogram frameInterval = new LatencyHistogram();
+    private final LatencyHistogram listenerTime = new LatencyHistogram();
+    private final LatencyHistogram bufferWait = new LatencyHistogram();
+    private long lastFrameNs;
+
+    /**
+     * 一帧到达时在相机线程中调用
+     *
+     * @param timestampNs 帧到达的单调时间
+     * @return 帧序号，从1开始
+     */
+    public long onFrameArrived(long timestampNs) {
+        if (lastFrameNs > 0) {
+            frameInterval.record(timestampNs - lastFrameNs);
+        }
+        lastFrameNs = timestampNs;
+        return sequence.incrementAndGet();
+    }
+
+    /**
+     * 相机重新打开时在相机线程中调用，下一帧不计算帧间隔
+     */
+    public void onStreamRestarted() {
+        lastFrameNs = 0;
+    }
+
+    /**
+     * 记录一次{@link CameraListener#onPreview}的处理耗时
+     */
+    public void recordListenerTime(long durationNs) {
+        listenerTime.record(durationNs);
+    }
+
+    /**
+     * 记录相机手中没有空闲缓冲区的持续时间
+     */
+    public void recordBufferWait(long durationNs) {
+        bufferWait.record(durationNs);
+    }
+
+    /**
+     * 清空统计，帧序号继续递增
+     */
+    public void reset() {
+        frameInterval.reset();
+        listenerTime.reset();
+        bufferWait.reset();
+    }
+
+    /**
+     * @param cameraDropped   因缓冲区不足被相机丢弃的帧数
+     * @param dispatchDropped 异步分发时因队列满被丢弃的帧数
+     */
+    public Snapshot snapshot(long cameraDropped, long dispatchDropped) {
+        return new Snapshot(sequence.get(), frameInterval.snapshot(), listenerTime.snapshot(), bufferWait.snapshot(),
+                cameraDropped, dispatchDropped);
+    }
+
+    /**
+     * 统计快照
+     */
+    public static final class Snapshot {
+        /**
+         * 最后一帧的序号
+         */
+        public final long sequence;
+        public final LatencyHistogram.Snapshot frameInterval;
+        public final LatencyHistogram.Snapshot listenerTime;
+        public final LatencyHistogram.Snapshot bufferWait;
+        public final long cameraDropped;
+        public final long dispatchDropped;
+
+        Snapshot(long sequence, LatencyHistogram.Snapshot frameInterval, LatencyHistogram.Snapshot listenerTime,
+                 LatencyHistogram.Snapshot bufferWait, long cameraDropped, long dispatchDropped) {
+            this.sequence = sequence;
+            this.frameInterval = frameInterval;
+            this.listenerTime = listenerTime;
+            this.bufferWait = bufferWait;
+            this.cameraDropped = cameraDropped;
+            this.dispatchDropped = dispatchDropped;
+        }
+
+        /**
+         * @return 按平均帧间隔计算的帧率
+         */
+        public double getFps() {
+            long mean = frameInterval.getMeanNs();
+            return mean == 0 ? 0 : 1_000_000_000.0 / mean;
+        }
+
+        /**
+         * @return 帧间隔的标准差
+         */
+        public long getJitterNs() {
+            return frameInterval.getStdDevNs();
+        }
+
+        @Override
+        public String toString() {
+            return "seq=" + sequence + " fps=" + Math.round(getFps() * 10) / 10.0
+                    + " dropped=" + cameraDropped + "/" + dispatchDropped
+                    + " | interval " + frameInterval + " | listener " + listenerTime + " | bufferWait " + bufferWait;
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package com.vk.opencameraincircle;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 预览帧质量分析器，在nv21亮度平面的圆形区域内按网格采样，计算清晰度（拉普拉斯能量）、平均亮度、
+ * 过曝/欠曝像素比例和噪声估计，结果通知给监听者。配置变化时才重新计算采样范围，逐帧分析只访问采样点
+ */
+public class FrameQualityAnalyzer {
+    /**
+     * 亮度不高于此值视为欠曝截断
+     */
+    private static final int LOW_CLIP = 4;
+    /**
+     * 亮度不低于此值视为过曝截断
+     */
+    private static final int HIGH_CLIP = 251;
+    /**
+     * Immerkaer噪声估计的系数 sqrt(pi / 2) / 6
+     */
+    private static final double NOISE_FACTOR = Math.sqrt(Math.PI / 2) / 6;
+
+    /**
+     * 分析结果监听，在调用{@link #analyze(byte[], long)}的线程中回调
+     */
+    public interface Listener {
+        void onFrameScored(Score score);
+    }
+
+    /**
+     * 一帧的分析结果
+     */
+    public static final class Score {
+        private final long timestampNs;
+        private final double focus;
+        private final float meanLuma;
+        private final float clippedRatio;
+        private final float noise;
+
+        Score(long timestampNs, double focus, float meanLuma, float clippedRatio, float noise) {
+            this.timestampNs = timestampNs;
+            this.focus = focus;
+            this.meanLuma = meanLuma;
+            this.clippedRatio = clippedRatio;
+            this.noise = noise;
+        }
+
+        public long getTimestampNs() {
+            return timestampNs;
+        }
+
+        /**
+         * 清晰度，采样点拉普拉斯响应的均方值，越大越清晰
+         */
+        public double getFocus() {
+            return focus;
+        }
+
+        /**
+         * 平均亮度，0~255
+         */
+        public float getMeanLuma() {
+            return meanLuma;
+        }
+
+        /**
+         * 亮度被截断（接近0或255）的采样点比例
+         */
+        public float getClippedRatio() {
+            return clippedRatio;
+        }
+
+        /**
+         * 噪声标准差的估计值，单位为亮度级；画面中边缘较多时偏大
+         */
+        public float getNoise() {
+            return noise;
+        }
+
+        /**
+         * 是否满足质量要求
+         */
+        public boolean isAcceptable(Thresholds thresholds) {
+            return focus >= thresholds.minFocus
+                    && meanLuma >= thresholds.minLuma && meanLuma <= thresholds.maxLuma
+                    && clippedRatio <= thresholds.maxClippedRatio
+                    && noise <= thresholds.maxNoise;
+        }
+
+        @Override
+        public String toString() {
+            return "focus=" + focus + ", luma=" + meanLuma + ", clipped=" + clippedRatio + ", noise=" + noise;
+        }
+    }
+
+    /**
+     * 质量要求
+     */
+    public static final class Thresholds {
+        private final double minFocus;
+        private final float minLuma;
+        private final float maxLuma;
+        private final float maxClippedRatio;
+        private final float maxNoise;
+
+        private Thresholds(Builder builder) {
+            minFocus = builder.minFocus;
+            minLuma = builder.minLuma;
+            maxLuma = builder.maxLuma;
+            maxClippedRatio = builder.maxClippedRatio;
+            maxNoise = builder.maxNoise;
+        }
+
+        public static final class Builder {
+            /**
+             * 最低清晰度，与场景有关，默认不限制
+             */
+            private double minFocus;
+            /**
+             * 平均亮度下限
+             */
+            private float minLuma = 40;
+            /**
+             * 平均亮度上限
+             */
+            private float maxLuma = 220;
+            /**
+             * 截断像素比例上限
+             */
+            private float maxClippedRatio = 0.2f;
+            /**
+             * 噪声上限，默认不限制
+             */
+            private float maxNoise = Float.MAX_VALUE;
+
+            public Builder() {
+            }
+
+            public Builder minFocus(double val) {
+                minFocus = val;
+                return this;
+            }
+
+            public Builder minLuma(float val) {
+                minLuma = val;
+                return this;
+            }
+
+            public Builder maxLuma(float val) {
+                maxLuma = val;
+                return this;
+            }
+
+            public Builder maxClippedRatio(float val) {
+                maxClippedRatio = val;
+                return this;
+            }
+
+            public Builder maxNoise(float val) {
+                maxNoise = val;
+                return this;
+            }
+
+            public Thresholds build() {
+                if (minLuma > maxLuma) {
+                    throw new IllegalArgumentException("minLuma must not be greater than maxLuma");
+                }
+                return new Thresholds(this);
+            }
+        }
+    }
+
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+    private int frameWidth;
+    private int frameHeight;
+    private float radiusRatio = 1f;
+    private int step = 4;
+    /**
+     * 采样行的y坐标及每行圆内采样点的起止x坐标，[start, end)
+     */
+    private int[] rows;
+    private int[] rowStart;
+    private int[] rowEnd;
+    private int rowCount;
+    private int sampleCount;
+
+    /**
+     * 设置帧的尺寸
+     */
+    public synchronized void configure(int frameWidth, int frameHeight) {
+        if (frameWidth < 3 || frameHeight < 3) {
+            throw new IllegalArgumentException("invalid frame size " + frameWidth + "x" + frameHeight);
+        }
+        this.frameWidth = frameWidth;
+        this.frameHeight = frameHeight;
+        update();
+    }
+
+    /**
+     * 设置分析区域，圆心为帧中心
+     *
+     * @param radiusRatio 半径与帧短边一半的比值，取值(0, 1]，与{@link Nv21CircleCropper#setRadiusRatio(float)}一致
+     */
+    public synchronized void setRadiusRatio(float radiusRatio) {
+        if (radiusRatio <= 0 || radiusRatio > 1) {
+            throw new IllegalArgumentException("radiusRatio must be in (0, 1]: " + radiusRatio);
+        }
+        this.radiusRatio = radiusRatio;
+        update();
+    }
+
+    /**
+     * 设置采样步长，越大越快、越粗略
+     */
+    public synchronized void setSampleStep(int step) {
+        if (step < 1) {
+            throw new IllegalArgumentException("step must be positive: " + step);
+        }
+        this.step = step;
+        update();
+    }
+
+    public void addListener(Listener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public boolean hasListeners() {
+        return !listeners.isEmpty();
+    }
+
+    private void update() {
+        if (frameWidth == 0) {
+            return;
+        }
+        float cx = (frameWidth - 1) / 2f;
+        float cy = (frameHeight - 1) / 2f;
+        float radius = Math.min(frameWidth, frameHeight) / 2f * radiusRatio;
+        int maxRows = frameHeight / step + 1;
+        rows = new int[maxRows];
+        rowStart = new int[maxRows];
+        rowEnd = new int[maxRows];
+        rowCount = 0;
+        sampleCount = 0;
+        //拉普拉斯和噪声估计需要上下左右各一个像素
+        for (int y = 1; y < frameHeight - 1; y += step) {
+            float dy = y - cy;
+            float half2 = radius * radius - dy * dy;
+            if (half2 < 0) {
+                continue;
+            }
+            float half = (float) Math.sqrt(half2);
+            int start = Math.max(1, (int) Math.ceil(cx - half));
+            int end = Math.min(frameWidth - 1, (int) Math.floor(cx + half) + 1);
+            if (start >= end) {
+                continue;
+            }
+            rows[rowCount] = y;
+            rowStart[rowCount] = start;
+            rowEnd[rowCount] = end;
+            rowCount++;
+            sampleCount += (end - start + step - 1) / step;
+        }
+    }
+
+    /**
+     * 分析一帧并通知监听者
+     *
+     * @param nv21        nv21数据，只读取亮度平面
+     * @param timestampNs 帧的时间
+     * @return 分析结果，未配置时返回null
+     */
+    public Score analyze(byte[] nv21, long timestampNs) {
+        Score score;
+        synchronized (this) {
+            if (sampleCount == 0) {
+                return null;
+            }
+            score = measure(nv21, timestampNs);
+        }
+        for (Listener listener : listeners) {
+            listener.onFrameScored(score);
+        }
+        return score;
+    }
+
+    private Score measure(byte[] y, long timestampNs) {
+        int w = frameWidth;
+        long lumaSum = 0;
+        long focusSum = 0;
+        long noiseSum = 0;
+        int clipped = 0;
+        for (int r = 0; r < rowCount; r++) {
+            int row = rows[r] * w;
+            int end = row + rowEnd[r];
+            for (int i = row + rowStart[r]; i < end; i += step) {
+                int p = y[i] & 0xFF;
+                int left = y[i - 1] & 0xFF;
+                int right = y[i + 1] & 0xFF;
+                int up = y[i - w] & 0xFF;
+                int down = y[i + w] & 0xFF;
+                int lap = 4 * p - left - right - up - down;
+                //Immerkaer噪声估计：[1 -2 1; -2 4 -2; 1 -2 1]
+                int corners = (y[i - w - 1] & 0xFF) + (y[i - w + 1] & 0xFF)
+                        + (y[i + w - 1] & 0xFF) + (y[i + w + 1] & 0xFF);
+                int noise = corners - 2 * (left + right + up + down) + 4 * p;
+                lumaSum += p;
+                focusSum += lap * lap;
+                noiseSum += noise < 0 ? -noise : noise;
+                if (p <= LOW_CLIP || p >= HIGH_CLIP) {
+                    clipped++;
+                }
+            }
+        }
+        float n = sampleCount;
+        return new Score(timestampNs, focusSum / (double) sampleCount, lumaSum / n, clipped / n,
+                (float) (NOISE_FACTOR * noiseSum / sampleCount));
+    }
+}
@@ -0,0 +1,190 @@
+package com.vk.opencameraincircle;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 图片编码器，可选择输出格式和质量，也可以在限定的编码次数内搜索质量，使输出大小不超过指定字节数
+ */
+public class ImageEncoder {
+
+    public enum Format {
+        JPEG,
+        /**
+         * 有损WebP
+         */
+        WEBP,
+        /**
+         * 无损PNG，忽略质量和大小限制
+         */
+        PNG
+    }
+
+    /**
+     * 与原来{@link ImageUtil#convert(Bitmap)}一致的无损PNG编码
+     */
+    public static final ImageEncoder PNG = new Builder().format(Format.PNG).build();
+
+    private final Format format;
+    private final int quality;
+    private final int minQuality;
+    private final int targetBytes;
+    private final int maxPasses;
+
+    private ImageEncoder(Builder builder) {
+        format = builder.format;
+        quality = builder.quality;
+        minQuality = builder.minQuality;
+        targetBytes = builder.targetBytes;
+        maxPasses = builder.maxPasses;
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    /**
+     * @return 输出格式是否保留透明度，JPEG不保留
+     */
+    public boolean supportsAlpha() {
+        return format != Format.JPEG;
+    }
+
+    /**
+     * 编码图片并写入输出流
+     *
+     * @param bitmap 图片
+     * @param out    输出流，写完后不会被关闭
+     * @return 实际使用的质量
+     */
+    public int encode(Bitmap bitmap, OutputStream out) throws IOException {
+        if (targetBytes <= 0 || format == Format.PNG) {
+            if (!bitmap.compress(compressFormat(), quality, out)) {
+                throw new IOException("failed to compress bitmap as " + format);
+            }
+            return quality;
+        }
+        ByteArrayOutputStream best = new ByteArrayOutputStream(targetBytes);
+        ByteArrayOutputStream candidate = new ByteArrayOutputStream(targetBytes);
+        int bestQuality = -1;
+        int lastQuality = -1;
+        //先用最高质量编码，超出大小时在[minQuality, quality)内二分搜索不超出大小的最高质量
+        int low = minQuality;
+        int high = quality;
+        int tryQuality = quality;
+        for (int pass = 0; pass < maxPasses && low <= high; pass++) {
+            candidate.reset();
+            if (!bitmap.compress(compressFormat(), tryQuality, candidate)) {
+                throw new IOException("failed to compress bitmap as " + format);
+            }
+            lastQuality = tryQuality;
+            if (candidate.size() <= targetBytes) {
+                ByteArrayOutputStream swap = best;
+                best = candidate;
+                candidate = swap;
+                bestQuality = tryQuality;
+                low = tryQuality + 1;
+            } else {
+                high = tryQuality - 1;
+            }
+            tryQuality = (low + high) >>> 1;
+        }
+        if (bestQuality < 0) {
+            //始终超出大小，使用最低质量的结果
+            if (lastQuality == minQuality) {
+                best = candidate;
+            } else {
+                best.reset();
+                if (!bitmap.compress(compressFormat(), minQuality, best)) {
+                    throw new IOException("failed to compress bitmap as " + format);
+                }
+            }
+            bestQuality = minQuality;
+        }
+        best.writeTo(out);
+        return bestQuality;
+    }
+
+    @SuppressWarnings("deprecation")
+    private Bitmap.CompressFormat compressFormat() {
+        switch (format) {
+            case JPEG:
+                return Bitmap.CompressFormat.JPEG;
+            case WEBP:
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+                    return Bitmap.CompressFormat.WEBP_LOSSY;
+                }
+                return Bitmap.CompressFormat.WEBP;
+            default:
+                return Bitmap.CompressFormat.PNG;
+        }
+    }
+
+    public static final class Builder {
+        /**
+         * 输出格式
+         */
+        private Format format = Format.JPEG;
+        /**
+         * 编码质量，限定大小时为搜索的上限
+         */
+        private int quality = 90;
+        /**
+         * 限定大小时搜索的质量下限
+         */
+        private int minQuality = 30;
+        /**
+         * 输出的最大字节数，0表示不限制
+         */
+        private int targetBytes;
+        /**
+         * 限定大小时最多编码的次数，全部超出大小时会再以最低质量编码一次
+         */
+        private int maxPasses = 4;
+
+        public Builder() {
+        }
+
+        public Builder format(Format val) {
+            format = val;
+            return this;
+        }
+
+        public Builder quality(int val) {
+            quality = val;
+            return this;
+        }
+
+        public Builder minQuality(int val) {
+            minQuality = val;
+            return this;
+        }
+
+        public Builder targetBytes(int val) {
+            targetBytes = val;
+            return this;
+        }
+
+        public Builder maxPasses(int val) {
+            maxPasses = val;
+            return this;
+        }
+
+        public ImageEncoder build() {
+            if (format == null) {
+                throw new IllegalArgumentException("format must not be null");
+            }
+            if (quality < 0 || quality > 100 || minQuality < 0 || minQuality > quality) {
+                throw new IllegalArgumentException("quality must satisfy 0 <= minQuality <= quality <= 100");
+            }
+            if (maxPasses < 1) {
+                throw new IllegalArgumentException("maxPasses must be at least 1");
+            }
+            return new ImageEncoder(this);
+        }
+    }
+}
@@ -3,21 +3,409 @@ package com.vk.opencameraincircle;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.util.Base64;
+import android.util.Base64InputStream;
+import android.util.Base64OutputStream;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 
 public class ImageUtil {
+    /**
+     * data uri前缀（如"data:image/png;base64,"）的最大长度
+     */
+    private static final int MAX_DATA_URI_PREFIX = 64;
+    private static final AreaDownscaler DOWNSCALER = new AreaDownscaler();
+
+    /**
+     * 解码Base64文本（可带data uri前缀）为图片
+     *
+     * @return 内容不是可解码的图片时返回null
+     * @throws IllegalArgumentException Base64文本格式错误
+     */
     public static Bitmap convert(String base64Str) throws IllegalArgumentException {
-        byte[] decodedBytes = Base64.decode(
-                base64Str.substring(base64Str.indexOf(",")  + 1),
-                Base64.DEFAULT
-        );
-        return BitmapFactory.decodeByteArray(decodedBytes, 0, decodedBytes.length);
+        int start = base64Str.indexOf(",") + 1;
+        ErrorRecordingInputStream in = new ErrorRecordingInputStream(new Base64InputStream(
+                new CharSequenceInputStream(base64Str, start), Base64.DEFAULT));
+        Bitmap bitmap = BitmapFactory.decodeStream(in);
+        //decodeStream会吞掉读取异常并返回null，读完剩余内容以校验整段文本，与原来的Base64.decode一致
+        in.drain();
+        if (in.error != null) {
+            if (bitmap != null) {
+                bitmap.recycle();
+            }
+            throw new IllegalArgumentException("bad base-64", in.error);
+        }
+        return bitmap;
     }
 
     public static String convert(Bitmap bitmap) {
+        return convert(bitmap, ImageEncoder.PNG);
+    }
+
+    /**
+     * 按指定的编码器压缩图片并转为Base64文本
+     *
+     * @param bitmap  图片
+     * @param encoder 编码器，决定格式、质量和大小限制
+     */
+    public static String convert(Bitmap bitmap, ImageEncoder encoder) {
         ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        bitmap.compress(Bitmap.CompressFormat.PNG, 100, outputStream);
-        return Base64.encodeToString(outputStream.toByteArray(), Base64.DEFAULT);
+        try {
+            encode(bitmap, encoder, outputStream);
+            return outputStream.toString("US-ASCII");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 把图片压缩后以Base64文本直接写入输出流，不生成中间的字节数组和字符串
+     *
+     * @param bitmap 图片
+     * @param out    输出流，写完后不会被关闭
+     */
+    public static void encode(Bitmap bitmap, OutputStream out) throws IOException {
+        encode(bitmap, ImageEncoder.PNG, out);
+    }
+
+    /**
+     * 按指定的编码器压缩图片，以Base64文本直接写入输出流
+     *
+     * @param bitmap  图片
+     * @param encoder 编码器
+     * @param out     输出流，写完后不会被关闭
+     */
+    public static void encode(Bitmap bitmap, ImageEncoder encoder, OutputStream out) throws IOException {
+        Base64OutputStream base64Stream = new Base64OutputStream(out, Base64.DEFAULT | Base64.NO_CLOSE);
+        encoder.encode(bitmap, base64Stream);
+        //close写出末尾的填充，NO_CLOSE保证不关闭out
+        base64Stream.close();
+    }
+
+    /**
+     * 把图片压缩后以Base64文本写入通道
+     *
+     * @param bitmap  图片
+     * @param channel 输出通道，写完后不会被关闭
+     */
+    public static void encode(Bitmap bitmap, WritableByteChannel channel) throws IOException {
+        encode(bitmap, ImageEncoder.PNG, channel);
+    }
+
+    public static void encode(Bitmap bitmap, ImageEncoder encoder, WritableByteChannel channel) throws IOException {
+        encode(bitmap, encoder, Channels.newOutputStream(channel));
+    }
+
+    /**
+     * 把图片压缩后以Base64文本写入可复用的缓冲区
+     *
+     * @param bitmap 图片
+     * @param target 目标缓冲区，从position开始写入
+     * @return 写入的字节数
+     * @throws BufferOverflowException 缓冲区剩余空间不足
+     */
+    public static int encode(Bitmap bitmap, ByteBuffer target) throws IOException {
+        return encode(bitmap, ImageEncoder.PNG, target);
+    }
+
+    public static int encode(Bitmap bitmap, ImageEncoder encoder, ByteBuffer target) throws IOException {
+        int start = target.position();
+        encode(bitmap, encoder, new ByteBufferOutputStream(target));
+        return target.position() - start;
+    }
+
+    /**
+     * 从输入流读取Base64文本并解码为图片，可带data uri前缀
+     *
+     * @param in 输入流，读完后不会被关闭
+     */
+    public static Bitmap decode(InputStream in) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(in);
+        skipDataUriPrefix(buffered);
+        return BitmapFactory.decodeStream(new Base64InputStream(buffered, Base64.DEFAULT));
+    }
+
+    /**
+     * 从通道读取Base64文本并解码为图片，可带data uri前缀
+     *
+     * @param channel 输入通道，读完后不会被关闭
+     */
+    public static Bitmap decode(ReadableByteChannel channel) throws IOException {
+        return decode(Channels.newInputStream(channel));
+    }
+
+    /**
+     * 从缓冲区读取Base64文本并解码为图片，可带data uri前缀
+     *
+     * @param source 缓冲区，从position读到limit
+     */
+    public static Bitmap decode(ByteBuffer source) throws IOException {
+        return decode(new ByteBufferInputStream(source));
+    }
+
+    /**
+     * 先读取图片尺寸，按采样率直接解码到接近目标的大小，再精确缩放到长边不超过maxSide，只做一次完整解码
+     *
+     * @param path    图片文件路径
+     * @param maxSide 长边的最大像素数，图片更小时不放大
+     * @return 缩放后的图片，无法解码时返回null
+     */
+    public static Bitmap decodeScaled(String path, int maxSide) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        if (!prepareSampling(options, maxSide)) {
+            return null;
+        }
+        Bitmap sampled = BitmapFactory.decodeFile(path, options);
+        return sampled == null ? null : scaleToFit(sampled, maxSide);
+    }
+
+    /**
+     * 与{@link #decodeScaled(String, int)}相同，直接从内存中的jpeg数据解码
+     *
+     * @param data    图片数据，如拍照回调中的jpeg
+     * @param maxSide 长边的最大像素数，图片更小时不放大
+     * @return 缩放后的图片，无法解码时返回null
+     */
+    public static Bitmap decodeScaled(byte[] data, int maxSide) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        if (!prepareSampling(options, maxSide)) {
+            return null;
+        }
+        Bitmap sampled = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        return sampled == null ? null : scaleToFit(sampled, maxSide);
+    }
+
+    /**
+     * 根据已读取的尺寸设置采样率，准备正式解码
+     *
+     * @return 尺寸无效时返回false
+     */
+    private static boolean prepareSampling(BitmapFactory.Options options, int maxSide) {
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return false;
+        }
+        options.inSampleSize = calculateInSampleSize(Math.max(options.outWidth, options.outHeight), maxSide);
+        options.inJustDecodeBounds = false;
+        return true;
+    }
+
+    /**
+     * 计算不小于目标尺寸的最大2的幂采样率
+     */
+    static int calculateInSampleSize(int longSide, int maxSide) {
+        int sampleSize = 1;
+        while (longSide / (sampleSize * 2) >= maxSide) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * 等比缩放到长边恰好为maxSide，缩放后回收原图。
+     * 采样解码后的缩小比例在1到2之间，双线性插值会跳过部分像素，这里用{@link AreaDownscaler}按面积平均；
+     * 按行段从原图读取、写入输出，java堆上只有一段的缓冲区
+     */
+    static Bitmap scaleToFit(final Bitmap bitmap, int maxSide) {
+        final int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int longSide = Math.max(width, height);
+        if (longSide <= maxSide) {
+            return bitmap;
+        }
+        final int targetWidth = Math.max(1, Math.round((float) width * maxSide / longSide));
+        int targetHeight = Math.max(1, Math.round((float) height * maxSide / longSide));
+        final Bitmap scaled = Bitmap.createBitmap(targetWidth, targetHeight, Bitmap.Config.ARGB_8888);
+        DOWNSCALER.scale(new AreaDownscaler.RowSource() {
+            @Override
+            public void readRows(int firstRow, int rowCount, int[] out) {
+                bitmap.getPixels(out, 0, width, 0, firstRow, width, rowCount);
+            }
+        }, width, height, new AreaDownscaler.RowSink() {
+            @Override
+            public void writeRows(int firstRow, int rowCount, int[] rows) {
+                scaled.setPixels(rows, 0, targetWidth, 0, firstRow, targetWidth, rowCount);
+            }
+        }, targetWidth, targetHeight);
+        bitmap.recycle();
+        return scaled;
+    }
+
+    private static void skipDataUriPrefix(BufferedInputStream in) throws IOException {
+        in.mark(MAX_DATA_URI_PREFIX);
+        if (in.read() != 'd') {
+            in.reset();
+            return;
+        }
+        for (int i = 1; i < MAX_DATA_URI_PREFIX; i++) {
+            int c = in.read();
+            if (c == ',') {
+                return;
+            }
+            if (c == -1) {
+                break;
+            }
+        }
+        in.reset();
+    }
+
+    private static final class ByteBufferOutputStream extends OutputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferOutputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public void write(int b) {
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            buffer.put(b, off, len);
+        }
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(len, buffer.remaining());
+            buffer.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+    /**
+     * 记录读取时的第一个异常，供调用方在BitmapFactory返回后检查
+     */
+    private static final class ErrorRecordingInputStream extends FilterInputStream {
+        IOException error;
+
+        ErrorRecordingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                return super.read();
+            } catch (IOException e) {
+                record(e);
+                throw e;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            try {
+                return super.read(b, off, len);
+            } catch (IOException e) {
+                record(e);
+                throw e;
+            }
+        }
+
+        /**
+         * 读完剩余内容，出错时只记录
+         */
+        void drain() {
+            if (error != null) {
+                return;
+            }
+            byte[] buffer = new byte[1024];
+            try {
+                while (in.read(buffer, 0, buffer.length) != -1) {
+                    //只校验格式
+                }
+            } catch (IOException e) {
+                record(e);
+            }
+        }
+
+        private void record(IOException e) {
+            if (error == null) {
+                error = e;
+            }
+        }
+    }
+
+    /**
+     * 按ASCII读取字符串，避免把整段Base64文本复制为字节数组
+     */
+    private static final class CharSequenceInputStream extends InputStream {
+        private final CharSequence text;
+        private int position;
+
+        CharSequenceInputStream(CharSequence text, int start) {
+            this.text = text;
+            this.position = start;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return position < text.length() ? nextAscii() : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int remaining = text.length() - position;
+            if (remaining <= 0) {
+                return -1;
+            }
+            int count = Math.min(len, remaining);
+            for (int i = 0; i < count; i++) {
+                b[off + i] = (byte) nextAscii();
+            }
+            return count;
+        }
+
+        /**
+         * base-64文本只含ASCII字符，其余字符不能截断成合法的字节
+         */
+        private int nextAscii() throws IOException {
+            char c = text.charAt(position);
+            if (c > 0x7F) {
+                throw new IOException("bad base-64: non-ASCII character at " + position);
+            }
+            position++;
+            return c;
+        }
+
+        @Override
+        public int available() {
+            return text.length() - position;
+        }
     }
 }
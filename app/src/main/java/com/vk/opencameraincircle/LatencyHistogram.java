@@ -0,0 +1,136 @@
+package com.vk.opencameraincircle;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 无锁的耗时直方图，按2的幂分桶，第0个桶记录0，第i个桶记录{@code [2^(i-1), 2^i)}纳秒的值。
+ * 记录只有几次原子加，可以在每个预览帧中调用；百分位数取所在桶的上界，误差不超过一倍
+ */
+public class LatencyHistogram {
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sumNs = new AtomicLong();
+    /**
+     * 以微秒为单位的平方和，纳秒的平方和很快会溢出
+     */
+    private final AtomicLong sumSquaresUs = new AtomicLong();
+    private final AtomicLong maxNs = new AtomicLong();
+
+    /**
+     * 记录一个耗时，负数按0记录
+     */
+    public void record(long valueNs) {
+        if (valueNs < 0) {
+            valueNs = 0;
+        }
+        buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(valueNs));
+        count.incrementAndGet();
+        sumNs.addAndGet(valueNs);
+        long us = valueNs / 1000;
+        sumSquaresUs.addAndGet(us * us);
+        long max;
+        while (valueNs > (max = maxNs.get())) {
+            if (maxNs.compareAndSet(max, valueNs)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * 清空记录，与{@link #record(long)}同时执行时可能残留部分数据
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        sumNs.set(0);
+        sumSquaresUs.set(0);
+        maxNs.set(0);
+    }
+
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = buckets.get(i);
+        }
+        return new Snapshot(copy, count.get(), sumNs.get(), sumSquaresUs.get(), maxNs.get());
+    }
+
+    /**
+     * 直方图快照，各项统计在取快照时可能相差正在记录的几个值
+     */
+    public static final class Snapshot {
+        private final long[] buckets;
+        private final long count;
+        private final long sumNs;
+        private final long sumSquaresUs;
+        private final long maxNs;
+
+        Snapshot(long[] buckets, long count, long sumNs, long sumSquaresUs, long maxNs) {
+            this.buckets = buckets;
+            this.count = count;
+            this.sumNs = sumNs;
+            this.sumSquaresUs = sumSquaresUs;
+            this.maxNs = maxNs;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMaxNs() {
+            return maxNs;
+        }
+
+        public long getMeanNs() {
+            return count == 0 ? 0 : sumNs / count;
+        }
+
+        /**
+         * @return 标准差，精度为微秒
+         */
+        public long getStdDevNs() {
+            if (count == 0) {
+                return 0;
+            }
+            double meanUs = sumNs / 1000.0 / count;
+            double variance = (double) sumSquaresUs / count - meanUs * meanUs;
+            return variance <= 0 ? 0 : (long) (Math.sqrt(variance) * 1000);
+        }
+
+        /**
+         * @param percentile 0到100
+         * @return 百分位数所在桶的上界，不超过最大值
+         */
+        public long getPercentileNs(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(count * Math.min(100, Math.max(0, percentile)) / 100.0);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= Math.max(1, rank)) {
+                    long upper = i == 0 ? 0 : (i >= 63 ? Long.MAX_VALUE : (1L << i) - 1);
+                    return Math.min(upper, maxNs);
+                }
+            }
+            return maxNs;
+        }
+
+        @Override
+        public String toString() {
+            return "n=" + count + " mean=" + toMs(getMeanNs()) + "ms sd=" + toMs(getStdDevNs())
+                    + "ms p50=" + toMs(getPercentileNs(50)) + "ms p99=" + toMs(getPercentileNs(99))
+                    + "ms max=" + toMs(maxNs) + "ms";
+        }
+
+        private static String toMs(long ns) {
+            return String.valueOf(Math.round(ns / 10_000.0) / 100.0);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.vk.opencameraincircle;
+
+import android.hardware.Camera;
+import android.os.SystemClock;
+
+/**
+ * 基于{@link android.hardware.Camera}的数据源，由{@link CameraHelper}实现，在不支持camera2的设备上使用。
+ * 预览帧是nv21数组的视图，{@link CameraFrame#getNv21Array()}可以直接取得数组；拍照时预览会短暂停止
+ */
+public class LegacyCameraSource implements CameraSource {
+    private final CameraHelper cameraHelper;
+    private final CameraFrame frame = new CameraFrame();
+    private volatile Listener listener;
+    private volatile int previewWidth;
+    private volatile int previewHeight;
+
+    /**
+     * @param builder 相机配置，其中的{@link CameraListener}会被替换
+     */
+    public LegacyCameraSource(CameraHelper.Builder builder) {
+        cameraHelper = builder.cameraListener(cameraListener).build();
+    }
+
+    /**
+     * 获取底层的{@link CameraHelper}，用于零延迟拍照、连拍等只在此数据源上提供的功能
+     */
+    public CameraHelper getCameraHelper() {
+        return cameraHelper;
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void start() {
+        cameraHelper.start();
+    }
+
+    @Override
+    public void stop() {
+        cameraHelper.stop();
+    }
+
+    @Override
+    public void takePicture(PictureCallback callback) {
+        cameraHelper.takePicture(callback);
+    }
+
+    @Override
+    public void release() {
+        cameraHelper.release();
+    }
+
+    private final CameraListener cameraListener = new CameraListener() {
+        @Override
+        public void onCameraOpened(Camera camera, int cameraId, int displayOrientation, boolean isMirror,
+                                   PreviewSizePolicy.Choice previewSize) {
+            previewWidth = previewSize.getWidth();
+            previewHeight = previewSize.getHeight();
+            Listener l = listener;
+            if (l != null) {
+                l.onSourceOpened(LegacyCameraSource.this, previewWidth, previewHeight, displayOrientation, isMirror);
+            }
+        }
+
+        @Override
+        public void onPreview(byte[] data, Camera camera) {
+            Listener l = listener;
+            if (l == null) {
+                return;
+            }
+            //预览回调同一时间只在一个线程中执行，frame可以复用
+            frame.setNv21(data, previewWidth, previewHeight, SystemClock.elapsedRealtimeNanos());
+            l.onSourceFrame(LegacyCameraSource.this, frame);
+        }
+
+        @Override
+        public void onCameraClosed() {
+            Listener l = listener;
+            if (l != null) {
+                l.onSourceClosed(LegacyCameraSource.this);
+            }
+        }
+
+        @Override
+        public void onCameraError(Exception e) {
+            Listener l = listener;
+            if (l != null) {
+                l.onSourceError(LegacyCameraSource.this, e);
+            }
+        }
+
+        @Override
+        public void onCameraConfigurationChanged(int cameraID, int displayOrientation) {
+        }
+    };
+}
@@ -30,6 +30,16 @@ public class MainActivity extends BaseActivity {
         }
     }
 
+    public void usingCamera2(View view) {
+        if (checkPermissions(CAMERA_PERMISSION)) {
+            //设备不完整支持camera2时CameraActivity仍使用旧接口
+            startActivity(new Intent(this, CameraActivity.class)
+                    .putExtra(CameraActivity.EXTRA_USE_CAMERA2, true));
+        } else {
+            ActivityCompat.requestPermissions(this, CAMERA_PERMISSION, REQUEST_CODE_USING_CAMERA2);
+        }
+    }
+
     @Override
     protected void onRequestPermissionResult(int requestCode, boolean isAllGranted) {
         super.onRequestPermissionResult(requestCode, isAllGranted);
@@ -38,6 +48,9 @@ public class MainActivity extends BaseActivity {
                 case REQUEST_CODE_USING_CAMERA:
                     usingCamera(null);
                     break;
+                case REQUEST_CODE_USING_CAMERA2:
+                    usingCamera2(null);
+                    break;
                 default:
                     break;
             }
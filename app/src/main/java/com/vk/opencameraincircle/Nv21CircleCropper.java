@@ -0,0 +1,260 @@
+package com.vk.opencameraincircle;
+
+/**
+ * nv21圆形区域裁剪器，一次遍历完成裁剪、旋转、镜像，把圆形预览区域的外接正方形写入调用方提供的缓冲区。
+ * <p>
+ * 输出图像与{@link CameraHelper}的预览显示一致：先取帧中心边长为{@code 2 * radius}的正方形；后置相机顺时针旋转
+ * displayOrientation度，isMirror为true时再水平翻转。前置相机的预览由系统先水平翻转再旋转，
+ * 等价于逆时针旋转displayOrientation度后再水平翻转，因此isMirror为true时两次翻转抵消。
+ * 配置变化时才重新计算映射表，逐帧裁剪不分配内存
+ */
+public class Nv21CircleCropper {
+    /**
+     * 圆外像素的填充值（黑色）
+     */
+    private static final byte MASK_LUMA = 0;
+    private static final byte MASK_CHROMA = (byte) 128;
+
+    private int frameWidth;
+    private int frameHeight;
+    private int displayOrientation;
+    private boolean isMirror;
+    private float radiusRatio = 1f;
+    private boolean maskEnabled;
+
+    private int side;
+    private int cropLeft;
+    private int cropTop;
+    /**
+     * 输出坐标(x, y)对应源正方形内坐标为(ax * x + bx * y + cx, ay * x + by * y + cy)
+     */
+    private int ax, bx, cx, ay, by, cy;
+    /**
+     * 开启遮罩时每行（亮度）、每两行（色度）圆内区域的起止列，[start, end)
+     */
+    private int[] lumaSpan;
+    private int[] chromaSpan;
+
+    /**
+     * 设置后置相机帧的参数
+     *
+     * @see #configure(int, int, int, boolean, boolean)
+     */
+    public void configure(int frameWidth, int frameHeight, int displayOrientation, boolean isMirror) {
+        configure(frameWidth, frameHeight, displayOrientation, isMirror, false);
+    }
+
+    /**
+     * 设置帧的参数
+     *
+     * @param frameWidth         帧宽度
+     * @param frameHeight        帧高度
+     * @param displayOrientation 相机预览旋转角度，取值0、90、180、270
+     * @param isMirror           是否镜像显示
+     * @param frontFacing        是否为前置相机
+     */
+    public synchronized void configure(int frameWidth, int frameHeight, int displayOrientation, boolean isMirror,
+                                       boolean frontFacing) {
+        if (frameWidth <= 0 || frameHeight <= 0 || (frameWidth & 1) != 0 || (frameHeight & 1) != 0) {
+            throw new IllegalArgumentException("invalid nv21 size " + frameWidth + "x" + frameHeight);
+        }
+        if (displayOrientation % 90 != 0) {
+            throw new IllegalArgumentException("displayOrientation must be a multiple of 90: " + displayOrientation);
+        }
+        this.frameWidth = frameWidth;
+        this.frameHeight = frameHeight;
+        int orientation = ((displayOrientation % 360) + 360) % 360;
+        //前置：先翻转再旋转d度 == 先逆时针旋转d度再翻转
+        this.displayOrientation = frontFacing ? (360 - orientation) % 360 : orientation;
+        this.isMirror = frontFacing != isMirror;
+        update();
+    }
+
+    /**
+     * 设置圆的半径
+     *
+     * @param radiusRatio 半径与帧短边一半的比值，取值(0, 1]，与预览控件上圆角半径的比例一致
+     */
+    public synchronized void setRadiusRatio(float radiusRatio) {
+        if (radiusRatio <= 0 || radiusRatio > 1) {
+            throw new IllegalArgumentException("radiusRatio must be in (0, 1]: " + radiusRatio);
+        }
+        this.radiusRatio = radiusRatio;
+        update();
+    }
+
+    /**
+     * 是否把圆外像素填充为黑色
+     */
+    public synchronized void setMaskEnabled(boolean maskEnabled) {
+        this.maskEnabled = maskEnabled;
+        update();
+    }
+
+    /**
+     * @return 输出正方形的边长，未配置时为0
+     */
+    public synchronized int getOutputSide() {
+        return side;
+    }
+
+    /**
+     * @return 输出nv21数据所需的缓冲区大小
+     */
+    public synchronized int getOutputBufferSize() {
+        return side * side * 3 / 2;
+    }
+
+    /**
+     * @return 裁剪区域在源帧中的左上角x坐标
+     */
+    public synchronized int getCropLeft() {
+        return cropLeft;
+    }
+
+    /**
+     * @return 裁剪区域在源帧中的左上角y坐标
+     */
+    public synchronized int getCropTop() {
+        return cropTop;
+    }
+
+    private void update() {
+        if (frameWidth == 0) {
+            return;
+        }
+        int shortSide = Math.min(frameWidth, frameHeight);
+        side = Math.max(2, Math.round(shortSide * radiusRatio)) & ~1;
+        //nv21色度按2x2采样，左上角必须是偶数坐标
+        cropLeft = ((frameWidth - side) / 2) & ~1;
+        cropTop = ((frameHeight - side) / 2) & ~1;
+
+        int last = side - 1;
+        switch (displayOrientation) {
+            case 90:
+                ax = 0; bx = 1; cx = 0;
+                ay = -1; by = 0; cy = last;
+                break;
+            case 180:
+                ax = -1; bx = 0; cx = last;
+                ay = 0; by = -1; cy = last;
+                break;
+            case 270:
+                ax = 0; bx = -1; cx = last;
+                ay = 1; by = 0; cy = 0;
+                break;
+            default:
+                ax = 1; bx = 0; cx = 0;
+                ay = 0; by = 1; cy = 0;
+                break;
+        }
+        if (isMirror) {
+            //x -> last - x
+            cx += ax * last;
+            ax = -ax;
+            cy += ay * last;
+            ay = -ay;
+        }
+
+        if (maskEnabled) {
+            lumaSpan = buildSpans(side, 1, lumaSpan);
+            chromaSpan = buildSpans(side / 2, 2, chromaSpan);
+        }
+    }
+
+    /**
+     * 计算每行圆内区域的起止列，以像素（块）中心是否落在圆内为准
+     */
+    private static int[] buildSpans(int rows, int blockSize, int[] reuse) {
+        int[] spans = reuse != null && reuse.length == rows * 2 ? reuse : new int[rows * 2];
+        //以两倍坐标计算，避免浮点：中心为(2 * i + 1) * blockSize，直径为2 * rows * blockSize
+        long diameter = (long) rows * blockSize;
+        long r2 = diameter * diameter;
+        for (int row = 0; row < rows; row++) {
+            long dy = (2L * row + 1) * blockSize - diameter;
+            long remain = r2 - dy * dy;
+            int start = rows;
+            int end = rows;
+            for (int col = 0; col < rows; col++) {
+                long dx = (2L * col + 1) * blockSize - diameter;
+                if (dx * dx <= remain) {
+                    start = col;
+                    end = rows - col;
+                    break;
+                }
+            }
+            spans[row * 2] = start;
+            spans[row * 2 + 1] = end;
+        }
+        return spans;
+    }
+
+    /**
+     * 裁剪一帧数据
+     *
+     * @param nv21 源帧数据
+     * @param out  输出缓冲区，大小不小于{@link #getOutputBufferSize()}
+     * @return 输出正方形的边长
+     */
+    public synchronized int crop(byte[] nv21, byte[] out) {
+        if (side == 0) {
+            throw new IllegalStateException("configure must be called before crop");
+        }
+        if (nv21.length < frameWidth * frameHeight * 3 / 2 || out.length < side * side * 3 / 2) {
+            throw new IllegalArgumentException("buffer too small");
+        }
+        int width = frameWidth;
+        boolean mask = maskEnabled;
+
+        //亮度
+        int lumaBase = cropTop * width + cropLeft;
+        int step = ay * width + ax;
+        int dst = 0;
+        for (int y = 0; y < side; y++) {
+            int src = lumaBase + (by * y + cy) * width + (bx * y + cx);
+            int start = mask ? lumaSpan[y * 2] : 0;
+            int end = mask ? lumaSpan[y * 2 + 1] : side;
+            int x = 0;
+            for (; x < start; x++) {
+                out[dst++] = MASK_LUMA;
+            }
+            src += step * start;
+            for (; x < end; x++) {
+                out[dst++] = nv21[src];
+                src += step;
+            }
+            for (; x < side; x++) {
+                out[dst++] = MASK_LUMA;
+            }
+        }
+
+        //色度，vu交错，按半分辨率使用相同的映射
+        int half = side / 2;
+        int halfLast = half - 1;
+        int hcx = cx == 0 ? 0 : halfLast;
+        int hcy = cy == 0 ? 0 : halfLast;
+        int chromaBase = width * frameHeight + (cropTop / 2) * width + cropLeft;
+        int chromaStep = ay * width + ax * 2;
+        for (int y = 0; y < half; y++) {
+            int src = chromaBase + (by * y + hcy) * width + (bx * y + hcx) * 2;
+            int start = mask ? chromaSpan[y * 2] : 0;
+            int end = mask ? chromaSpan[y * 2 + 1] : half;
+            int x = 0;
+            for (; x < start; x++) {
+                out[dst++] = MASK_CHROMA;
+                out[dst++] = MASK_CHROMA;
+            }
+            src += chromaStep * start;
+            for (; x < end; x++) {
+                out[dst++] = nv21[src];
+                out[dst++] = nv21[src + 1];
+                src += chromaStep;
+            }
+            for (; x < half; x++) {
+                out[dst++] = MASK_CHROMA;
+                out[dst++] = MASK_CHROMA;
+            }
+        }
+        return side;
+    }
+}
@@ -0,0 +1,259 @@
+package com.vk.opencameraincircle;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * nv21转换为ARGB、I420或NV12，结果写入调用方提供的数组，线程安全。
+ * 颜色转换按BT.601有限范围，用16位定点查表计算；整帧转换在像素数达到阈值时按行拆分到ForkJoinPool并行执行，
+ * 区域转换在调用线程中执行且不分配内存，适合每帧只需要一小块的场景
+ */
+public class Nv21Converter {
+    /**
+     * 默认的并行阈值，约为720p的一半
+     */
+    public static final int DEFAULT_PARALLEL_THRESHOLD = 1 << 19;
+    /**
+     * 并行时每个任务至少处理的行数
+     */
+    private static final int MIN_ROWS_PER_TASK = 32;
+
+    /**
+     * 系数为BT.601的值乘以255/219（亮度）或255/224（色度）再乘以65536取整
+     */
+    static final int COEFF_Y = 76309;
+    static final int COEFF_RV = 104597;
+    static final int COEFF_GU = 25675;
+    static final int COEFF_GV = 53279;
+    static final int COEFF_BU = 132201;
+
+    private static final int CLAMP_OFFSET = 384;
+    private static final int[] Y_TABLE = new int[256];
+    private static final int[] RV_TABLE = new int[256];
+    private static final int[] GU_TABLE = new int[256];
+    private static final int[] GV_TABLE = new int[256];
+    private static final int[] BU_TABLE = new int[256];
+    /**
+     * 下标为值加{@link #CLAMP_OFFSET}，结果限制在0到255
+     */
+    private static final int[] CLAMP_TABLE = new int[1024];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            //亮度项预先加上0.5用于四舍五入
+            Y_TABLE[i] = COEFF_Y * (i - 16) + (1 << 15);
+            RV_TABLE[i] = COEFF_RV * (i - 128);
+            GU_TABLE[i] = COEFF_GU * (i - 128);
+            GV_TABLE[i] = COEFF_GV * (i - 128);
+            BU_TABLE[i] = COEFF_BU * (i - 128);
+        }
+        for (int i = 0; i < CLAMP_TABLE.length; i++) {
+            CLAMP_TABLE[i] = Math.max(0, Math.min(255, i - CLAMP_OFFSET));
+        }
+    }
+
+    private static final int FORMAT_ARGB = 0;
+    private static final int FORMAT_I420 = 1;
+    private static final int FORMAT_NV12 = 2;
+
+    private final ForkJoinPool pool;
+    private final int parallelThreshold;
+
+    /**
+     * 使用公共ForkJoinPool和默认的并行阈值
+     */
+    public Nv21Converter() {
+        this(ForkJoinPool.commonPool(), DEFAULT_PARALLEL_THRESHOLD);
+    }
+
+    /**
+     * @param pool              并行转换使用的线程池
+     * @param parallelThreshold 像素数达到此值时并行转换，{@link Integer#MAX_VALUE}表示总是在调用线程中转换
+     */
+    public Nv21Converter(ForkJoinPool pool, int parallelThreshold) {
+        if (pool == null) {
+            throw new IllegalArgumentException("pool must not be null");
+        }
+        if (parallelThreshold < 1) {
+            throw new IllegalArgumentException("parallelThreshold must be positive");
+        }
+        this.pool = pool;
+        this.parallelThreshold = parallelThreshold;
+    }
+
+    /**
+     * 转换为ARGB_8888，可直接用于{@code Bitmap.setPixels}
+     *
+     * @param argb 输出，长度至少为width * height
+     */
+    public void toArgb(byte[] nv21, int width, int height, int[] argb) {
+        checkFrame(nv21, width, height);
+        checkCapacity(argb.length, width * height);
+        convert(FORMAT_ARGB, nv21, width, height, argb, null);
+    }
+
+    /**
+     * 转换一个区域为ARGB_8888，在调用线程中执行，不分配内存
+     *
+     * @param left      区域左边界
+     * @param top       区域上边界
+     * @param roiWidth  区域宽度
+     * @param roiHeight 区域高度
+     * @param argb      输出，按区域宽度紧密排列，长度至少为roiWidth * roiHeight
+     */
+    public void toArgb(byte[] nv21, int width, int height, int left, int top, int roiWidth, int roiHeight,
+                       int[] argb) {
+        checkFrame(nv21, width, height);
+        if (left < 0 || top < 0 || roiWidth <= 0 || roiHeight <= 0
+                || left + roiWidth > width || top + roiHeight > height) {
+            throw new IllegalArgumentException("roi " + left + "," + top + " " + roiWidth + "x" + roiHeight
+                    + " is outside of " + width + "x" + height);
+        }
+        checkCapacity(argb.length, roiWidth * roiHeight);
+        int frameSize = width * height;
+        int out = 0;
+        for (int y = top; y < top + roiHeight; y++) {
+            int yIndex = y * width + left;
+            int uvRow = frameSize + (y >> 1) * width;
+            for (int x = left; x < left + roiWidth; x++) {
+                int uvIndex = uvRow + (x & ~1);
+                argb[out++] = pixel(nv21[yIndex++] & 0xFF, nv21[uvIndex + 1] & 0xFF, nv21[uvIndex] & 0xFF);
+            }
+        }
+    }
+
+    /**
+     * 转换为I420（Y平面后依次为U平面、V平面）
+     *
+     * @param i420 输出，长度至少为width * height * 3 / 2
+     */
+    public void toI420(byte[] nv21, int width, int height, byte[] i420) {
+        checkFrame(nv21, width, height);
+        checkCapacity(i420.length, width * height * 3 / 2);
+        convert(FORMAT_I420, nv21, width, height, null, i420);
+    }
+
+    /**
+     * 转换为NV12（与nv21相同，但色度按UV交错）
+     *
+     * @param nv12 输出，长度至少为width * height * 3 / 2
+     */
+    public void toNv12(byte[] nv21, int width, int height, byte[] nv12) {
+        checkFrame(nv21, width, height);
+        checkCapacity(nv12.length, width * height * 3 / 2);
+        convert(FORMAT_NV12, nv21, width, height, null, nv12);
+    }
+
+    private void convert(int format, byte[] nv21, int width, int height, int[] argb, byte[] yuv) {
+        if (width * height < parallelThreshold || height < MIN_ROWS_PER_TASK * 2) {
+            convertRows(format, nv21, width, height, argb, yuv, 0, height);
+            return;
+        }
+        pool.invoke(new RowTask(format, nv21, width, height, argb, yuv, 0, height));
+    }
+
+    /**
+     * 转换[rowStart, rowEnd)行，rowStart为偶数
+     */
+    private static void convertRows(int format, byte[] nv21, int width, int height, int[] argb, byte[] yuv,
+                                    int rowStart, int rowEnd) {
+        int frameSize = width * height;
+        if (format == FORMAT_ARGB) {
+            for (int y = rowStart; y < rowEnd; y++) {
+                int index = y * width;
+                int uvRow = frameSize + (y >> 1) * width;
+                for (int x = 0; x < width; x += 2) {
+                    int v = nv21[uvRow + x] & 0xFF;
+                    int u = nv21[uvRow + x + 1] & 0xFF;
+                    argb[index] = pixel(nv21[index] & 0xFF, u, v);
+                    argb[index + 1] = pixel(nv21[index + 1] & 0xFF, u, v);
+                    index += 2;
+                }
+            }
+            return;
+        }
+        System.arraycopy(nv21, rowStart * width, yuv, rowStart * width, (rowEnd - rowStart) * width);
+        int chromaStart = rowStart >> 1;
+        int chromaEnd = (rowEnd + 1) >> 1;
+        if (format == FORMAT_I420) {
+            int quarter = frameSize / 4;
+            int halfWidth = width >> 1;
+            for (int row = chromaStart; row < chromaEnd; row++) {
+                int src = frameSize + row * width;
+                int dst = frameSize + row * halfWidth;
+                for (int i = 0; i < halfWidth; i++) {
+                    yuv[dst + quarter + i] = nv21[src];
+                    yuv[dst + i] = nv21[src + 1];
+                    src += 2;
+                }
+            }
+        } else {
+            int end = frameSize + chromaEnd * width;
+            for (int i = frameSize + chromaStart * width; i < end; i += 2) {
+                yuv[i] = nv21[i + 1];
+                yuv[i + 1] = nv21[i];
+            }
+        }
+    }
+
+    private static int pixel(int y, int u, int v) {
+        int luma = Y_TABLE[y];
+        int r = CLAMP_TABLE[((luma + RV_TABLE[v]) >> 16) + CLAMP_OFFSET];
+        int g = CLAMP_TABLE[((luma - GU_TABLE[u] - GV_TABLE[v]) >> 16) + CLAMP_OFFSET];
+        int b = CLAMP_TABLE[((luma + BU_TABLE[u]) >> 16) + CLAMP_OFFSET];
+        return 0xFF000000 | (r << 16) | (g << 8) | b;
+    }
+
+    private static void checkFrame(byte[] nv21, int width, int height) {
+        if (width <= 0 || height <= 0 || (width & 1) != 0 || (height & 1) != 0) {
+            throw new IllegalArgumentException("frame size must be positive and even: " + width + "x" + height);
+        }
+        if (nv21.length < width * height * 3 / 2) {
+            throw new IllegalArgumentException("nv21 data is smaller than " + width + "x" + height);
+        }
+    }
+
+    private static void checkCapacity(int length, int required) {
+        if (length < required) {
+            throw new IllegalArgumentException("output length " + length + " is smaller than " + required);
+        }
+    }
+
+    /**
+     * 按行二分，拆分点保持为偶数行，使每个任务独占自己的色度行
+     */
+    private static final class RowTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int format;
+        private final byte[] nv21;
+        private final int width;
+        private final int height;
+        private final int[] argb;
+        private final byte[] yuv;
+        private final int rowStart;
+        private final int rowEnd;
+
+        RowTask(int format, byte[] nv21, int width, int height, int[] argb, byte[] yuv, int rowStart, int rowEnd) {
+            this.format = format;
+            this.nv21 = nv21;
+            this.width = width;
+            this.height = height;
+            this.argb = argb;
+            this.yuv = yuv;
+            this.rowStart = rowStart;
+            this.rowEnd = rowEnd;
+        }
+
+        @Override
+        protected void compute() {
+            int rows = rowEnd - rowStart;
+            if (rows < MIN_ROWS_PER_TASK * 2) {
+                convertRows(format, nv21, width, height, argb, yuv, rowStart, rowEnd);
+                return;
+            }
+            int middle = (rowStart + rows / 2) & ~1;
+            invokeAll(new RowTask(format, nv21, width, height, argb, yuv, rowStart, middle),
+                    new RowTask(format, nv21, width, height, argb, yuv, middle, rowEnd));
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package com.vk.opencameraincircle;
+
+/**
+ * 预览回调缓冲池，和{@link CameraHelper}共同使用，复用固定数量的nv21缓冲区并统计送达帧数、丢帧数。
+ * 每个缓冲区处于三种状态之一：空闲、已交给相机等待填充、正在被回调使用
+ */
+public class PreviewBufferPool {
+    private static final int STATE_FREE = 0;
+    private static final int STATE_QUEUED = 1;
+    private static final int STATE_HELD = 2;
+
+    private final int depth;
+    private byte[][] buffers;
+    private int[] states;
+    private int bufferSize;
+    /**
+     * 当前已交给相机、等待填充的缓冲区数量
+     */
+    private int queuedCount;
+    private long framesDelivered;
+    private long framesDropped;
+    private long frameIntervalNs;
+    private long lastFrameNs;
+    /**
+     * 上一帧到达后相机手中已没有可用缓冲区
+     */
+    private boolean starved;
+    /**
+     * 相机手中的缓冲区耗尽的时间，{@link System#nanoTime()}，0表示没有耗尽
+     */
+    private long starvedSinceNs;
+    private FrameMetrics metrics;
+
+    public PreviewBufferPool(int depth) {
+        if (depth < 1) {
+            throw new IllegalArgumentException("buffer pool depth must be at least 1");
+        }
+        this.depth = depth;
+    }
+
+    /**
+     * 按帧大小准备缓冲区，大小不变时复用已有的缓冲区。相机重新打开时调用，
+     * 之前交给相机的缓冲区视为空闲，仍在被回调使用的缓冲区待归还后再交给相机
+     *
+     * @param bufferSize 单帧数据大小
+     */
+    public synchronized void prepare(int bufferSize) {
+        if (buffers == null || this.bufferSize != bufferSize) {
+            buffers = new byte[depth][];
+            states = new int[depth];
+            for (int i = 0; i < depth; i++) {
+                buffers[i] = new byte[bufferSize];
+            }
+            this.bufferSize = bufferSize;
+        }
+        reset();
+    }
+
+    /**
+     * 相机关闭时调用，相机手中的缓冲区全部变为空闲
+     */
+    public synchronized void reset() {
+        if (states != null) {
+            for (int i = 0; i < depth; i++) {
+                if (states[i] == STATE_QUEUED) {
+                    states[i] = STATE_FREE;
+                }
+            }
+        }
+        queuedCount = 0;
+        lastFrameNs = 0;
+        starved = false;
+        starvedSinceNs = 0;
+    }
+
+    /**
+     * 取出一个空闲缓冲区并标记为已交给相机
+     *
+     * @return 空闲缓冲区，没有时返回null
+     */
+    public synchronized byte[] pollFree() {
+        if (states == null) {
+            return null;
+        }
+        for (int i = 0; i < depth; i++) {
+            if (states[i] == STATE_FREE) {
+                states[i] = STATE_QUEUED;
+                queuedCount++;
+                return buffers[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 设置性能统计，缓冲区耗尽到归还第一个缓冲区的时间记为等待时间
+     */
+    public synchronized void setMetrics(FrameMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * 设置相机的帧间隔，用于估算缓冲区耗尽期间丢失的帧数
+     *
+     * @param frameIntervalNs 帧间隔，单位纳秒，0表示不估算
+     */
+    public synchronized void setFrameInterval(long frameIntervalNs) {
+        this.frameIntervalNs = frameIntervalNs;
+    }
+
+    /**
+     * 一帧数据到达时调用，该缓冲区标记为正在使用
+     *
+     * @param buffer      相机回传的缓冲区
+     * @param timestampNs 帧到达的单调时间，单位纳秒
+     */
+    public synchronized void onFrameArrived(byte[] buffer, long timestampNs) {
+        int index = indexOf(buffer);
+        if (index >= 0 && states[index] == STATE_QUEUED) {
+            states[index] = STATE_HELD;
+            queuedCount--;
+        }
+        framesDelivered++;
+        if (starved && lastFrameNs > 0 && frameIntervalNs > 0) {
+            long missed = (timestampNs - lastFrameNs + frameIntervalNs / 2) / frameIntervalNs - 1;
+            if (missed > 0) {
+                framesDropped += missed;
+            }
+        }
+        starved = queuedCount == 0;
+        if (starved && metrics != null) {
+            starvedSinceNs = System.nanoTime();
+        }
+        lastFrameNs = timestampNs;
+    }
+
+    /**
+     * 回调使用完毕，准备把缓冲区交还给相机
+     *
+     * @param buffer 使用完毕的缓冲区
+     * @return 为true时调用方需将其交给相机，为false表示该缓冲区已不属于本池
+     */
+    public synchronized boolean requeue(byte[] buffer) {
+        int index = indexOf(buffer);
+        if (index < 0 || states[index] != STATE_HELD) {
+            return false;
+        }
+        states[index] = STATE_QUEUED;
+        queuedCount++;
+        if (starvedSinceNs > 0) {
+            metrics.recordBufferWait(System.nanoTime() - starvedSinceNs);
+            starvedSinceNs = 0;
+        }
+        return true;
+    }
+
+    /**
+     * 回调使用完毕但相机已关闭，缓冲区变为空闲，下次打开相机时复用
+     *
+     * @param buffer 使用完毕的缓冲区
+     */
+    public synchronized void recycle(byte[] buffer) {
+        int index = indexOf(buffer);
+        if (index >= 0 && states[index] == STATE_HELD) {
+            states[index] = STATE_FREE;
+        }
+    }
+
+    private int indexOf(byte[] buffer) {
+        if (buffers == null) {
+            return -1;
+        }
+        for (int i = 0; i < depth; i++) {
+            if (buffers[i] == buffer) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(framesDelivered, framesDropped, depth, queuedCount);
+    }
+
+    /**
+     * 缓冲池统计快照
+     */
+    public static final class Stats {
+        /**
+         * 已送达的帧数
+         */
+        public final long framesDelivered;
+        /**
+         * 因没有空闲缓冲区而被相机丢弃的帧数（估算值）
+         */
+        public final long framesDropped;
+        /**
+         * 缓冲区总数
+         */
+        public final int depth;
+        /**
+         * 在相机手中等待填充的缓冲区数
+         */
+        public final int queued;
+
+        Stats(long framesDelivered, long framesDropped, int depth, int queued) {
+            this.framesDelivered = framesDelivered;
+            this.framesDropped = framesDropped;
+            this.depth = depth;
+            this.queued = queued;
+        }
+
+        /**
+         * @return 不在相机手中（正在被回调使用或空闲）的缓冲区数
+         */
+        public int inUse() {
+            return depth - queued;
+        }
+
+        @Override
+        public String toString() {
+            return "delivered=" + framesDelivered + " dropped=" + framesDropped + " inUse=" + inUse() + "/" + depth;
+        }
+    }
+}
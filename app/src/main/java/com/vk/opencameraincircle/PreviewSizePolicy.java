@@ -0,0 +1,208 @@
+package com.vk.opencameraincircle;
+
+/**
+ * 预览尺寸选择策略，在相机线程中打开相机时调用，通过{@link CameraHelper.Builder#previewSizePolicy(PreviewSizePolicy)}设置。
+ * 选择结果和原因通过{@link CameraListener#onCameraOpened}回调
+ */
+public abstract class PreviewSizePolicy {
+    /**
+     * 与控件长宽比的差距在此范围内的尺寸视为同一长宽比
+     */
+    private static final float RATIO_TOLERANCE = 0.05f;
+
+    /**
+     * @param sizes      支持的预览尺寸，按宽度、高度从大到小排列的{@code [w0, h0, w1, h1, ...]}，至少有一个
+     * @param viewWidth  预览控件宽度，未知时为0
+     * @param viewHeight 预览控件高度，未知时为0
+     * @param rotated    是否有额外的90度或270度旋转
+     * @return 选中的尺寸，必须是sizes中的一个
+     */
+    public abstract Choice choose(int[] sizes, int viewWidth, int viewHeight, boolean rotated);
+
+    /**
+     * 选择长宽比与控件最接近的最大尺寸，未设置策略时使用
+     */
+    public static PreviewSizePolicy closestAspectRatio() {
+        return new ClosestAspectRatio();
+    }
+
+    /**
+     * 选择能覆盖圆形预览直径的最小尺寸，圆的直径取控件较短的边
+     *
+     * @param pixelDensity 每个屏幕像素至少对应的预览像素数，1表示与屏幕一一对应
+     */
+    public static PreviewSizePolicy coverCircle(float pixelDensity) {
+        if (pixelDensity <= 0) {
+            throw new IllegalArgumentException("pixelDensity must be positive");
+        }
+        return new CoverCircle(pixelDensity);
+    }
+
+    /**
+     * 选择估算处理耗时不超过每帧预算的最大尺寸
+     *
+     * @param budgetNs    每帧处理的时间预算
+     * @param nsPerPixel  处理每个像素的平均耗时，可以从实际处理耗时除以像素数得到
+     */
+    public static PreviewSizePolicy frameBudget(long budgetNs, float nsPerPixel) {
+        if (budgetNs <= 0 || nsPerPixel <= 0) {
+            throw new IllegalArgumentException("budgetNs and nsPerPixel must be positive");
+        }
+        return new FrameBudget(budgetNs, nsPerPixel);
+    }
+
+    /**
+     * 与原有选择方式一致：控件长宽比折算为短边比长边，无额外旋转时与尺寸的高宽比比较
+     */
+    static float ratioError(int width, int height, float viewRatio, boolean rotated) {
+        float ratio = rotated ? width / (float) height : height / (float) width;
+        return Math.abs(ratio - viewRatio);
+    }
+
+    static float viewRatio(int[] sizes, int viewWidth, int viewHeight) {
+        float ratio = viewWidth > 0 && viewHeight > 0
+                ? (float) viewWidth / (float) viewHeight
+                : (float) sizes[0] / (float) sizes[1];
+        return ratio > 1 ? 1 / ratio : ratio;
+    }
+
+    /**
+     * @return 与控件长宽比最接近的尺寸的误差
+     */
+    static float minRatioError(int[] sizes, float viewRatio, boolean rotated) {
+        float min = Float.MAX_VALUE;
+        for (int i = 0; i < sizes.length; i += 2) {
+            min = Math.min(min, ratioError(sizes[i], sizes[i + 1], viewRatio, rotated));
+        }
+        return min;
+    }
+
+    /**
+     * 选择结果
+     */
+    public static final class Choice {
+        private final int width;
+        private final int height;
+        private final String reason;
+
+        public Choice(int width, int height, String reason) {
+            this.width = width;
+            this.height = height;
+            this.reason = reason;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        /**
+         * @return 选择原因，用于日志和统计
+         */
+        public String getReason() {
+            return reason;
+        }
+
+        @Override
+        public String toString() {
+            return width + "x" + height + " (" + reason + ")";
+        }
+    }
+
+    private static final class ClosestAspectRatio extends PreviewSizePolicy {
+        @Override
+        public Choice choose(int[] sizes, int viewWidth, int viewHeight, boolean rotated) {
+            float viewRatio = viewRatio(sizes, viewWidth, viewHeight);
+            int best = 0;
+            float bestError = ratioError(sizes[0], sizes[1], viewRatio, rotated);
+            for (int i = 2; i < sizes.length; i += 2) {
+                float error = ratioError(sizes[i], sizes[i + 1], viewRatio, rotated);
+                if (error < bestError) {
+                    best = i;
+                    bestError = error;
+                }
+            }
+            return new Choice(sizes[best], sizes[best + 1], "largest size with closest aspect ratio");
+        }
+    }
+
+    private static final class CoverCircle extends PreviewSizePolicy {
+        private final float pixelDensity;
+
+        CoverCircle(float pixelDensity) {
+            this.pixelDensity = pixelDensity;
+        }
+
+        @Override
+        public Choice choose(int[] sizes, int viewWidth, int viewHeight, boolean rotated) {
+            if (viewWidth <= 0 || viewHeight <= 0) {
+                Choice fallback = closestAspectRatio().choose(sizes, viewWidth, viewHeight, rotated);
+                return new Choice(fallback.getWidth(), fallback.getHeight(), "view size unknown, " + fallback.getReason());
+            }
+            int required = (int) Math.ceil(Math.min(viewWidth, viewHeight) * pixelDensity);
+            float viewRatio = viewRatio(sizes, viewWidth, viewHeight);
+            float maxError = minRatioError(sizes, viewRatio, rotated) + RATIO_TOLERANCE;
+            //尺寸从大到小排列，最后一个满足条件的面积最小；面积相同时保留先遇到的
+            int best = -1;
+            for (int i = 0; i < sizes.length; i += 2) {
+                int width = sizes[i];
+                int height = sizes[i + 1];
+                if (Math.min(width, height) < required || ratioError(width, height, viewRatio, rotated) > maxError) {
+                    continue;
+                }
+                if (best < 0 || width * height < sizes[best] * sizes[best + 1]) {
+                    best = i;
+                }
+            }
+            if (best < 0) {
+                Choice fallback = closestAspectRatio().choose(sizes, viewWidth, viewHeight, rotated);
+                return new Choice(fallback.getWidth(), fallback.getHeight(),
+                        "no size covers circle of " + required + "px, " + fallback.getReason());
+            }
+            return new Choice(sizes[best], sizes[best + 1], "smallest size covering circle of " + required + "px");
+        }
+    }
+
+    private static final class FrameBudget extends PreviewSizePolicy {
+        private final long budgetNs;
+        private final float nsPerPixel;
+
+        FrameBudget(long budgetNs, float nsPerPixel) {
+            this.budgetNs = budgetNs;
+            this.nsPerPixel = nsPerPixel;
+        }
+
+        @Override
+        public Choice choose(int[] sizes, int viewWidth, int viewHeight, boolean rotated) {
+            float viewRatio = viewRatio(sizes, viewWidth, viewHeight);
+            float maxError = minRatioError(sizes, viewRatio, rotated) + RATIO_TOLERANCE;
+            int best = -1;
+            int smallest = -1;
+            for (int i = 0; i < sizes.length; i += 2) {
+                int width = sizes[i];
+                int height = sizes[i + 1];
+                if (ratioError(width, height, viewRatio, rotated) > maxError) {
+                    continue;
+                }
+                int pixels = width * height;
+                if (smallest < 0 || pixels < sizes[smallest] * sizes[smallest + 1]) {
+                    smallest = i;
+                }
+                if (pixels * (double) nsPerPixel <= budgetNs
+                        && (best < 0 || pixels > sizes[best] * sizes[best + 1])) {
+                    best = i;
+                }
+            }
+            if (best < 0) {
+                return new Choice(sizes[smallest], sizes[smallest + 1],
+                        "no size fits " + budgetNs + "ns budget, using smallest");
+            }
+            long estimate = (long) (sizes[best] * sizes[best + 1] * (double) nsPerPixel);
+            return new Choice(sizes[best], sizes[best + 1],
+                    "largest size within " + budgetNs + "ns budget, estimated " + estimate + "ns");
+        }
+    }
+}
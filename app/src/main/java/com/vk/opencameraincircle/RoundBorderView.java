@@ -1,6 +1,7 @@
 package com.vk.opencameraincircle;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
@@ -12,9 +13,38 @@ import android.view.View;
 
 import androidx.annotation.Nullable;
 
+/**
+ * 预览外的渐变圆角边框。边框路径只在尺寸或半径变化时重建，绘制时不分配对象；
+ * 可选用硬件层或位图缓存边框，避免低端GPU每帧重新光栅化带渐变的路径
+ */
 public class RoundBorderView extends View {
-    private Paint paint;
+    /**
+     * 每次直接绘制路径
+     */
+    public static final int CACHE_NONE = 0;
+    /**
+     * 绘制到硬件层，半径不变时由GPU直接合成
+     */
+    public static final int CACHE_HARDWARE_LAYER = 1;
+    /**
+     * 半径或尺寸变化时在CPU上把边框画到位图，之后只绘制位图
+     */
+    public static final int CACHE_BITMAP = 2;
+
+    private static final int BORDER_WIDTH = 6;
+
+    private final Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Path path = new Path();
+    private final RectF bounds = new RectF();
     private int radius = 0;
+    private int cacheMode = CACHE_NONE;
+    /**
+     * 路径需要按当前尺寸和半径重建
+     */
+    private boolean pathDirty = true;
+    private final Canvas cacheCanvas = new Canvas();
+    private Bitmap cache;
+    private boolean cacheDirty = true;
 
     public RoundBorderView(Context context) {
         this(context, null);
@@ -22,31 +52,85 @@ public class RoundBorderView extends View {
 
     public RoundBorderView(Context context, @Nullable AttributeSet attrs) {
         super(context, attrs);
+        paint.setStyle(Paint.Style.STROKE);
+        paint.setStrokeWidth(BORDER_WIDTH);
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        //渐变中心随尺寸变化
+        paint.setShader(new SweepGradient(w / 2f, h / 2f,
+                new int[]{Color.GREEN, Color.CYAN, Color.BLUE, Color.CYAN, Color.GREEN}, null));
+        bounds.set(0, 0, w, h);
+        if (cache != null && (cache.getWidth() != w || cache.getHeight() != h)) {
+            cache.recycle();
+            cache = null;
+        }
+        pathDirty = true;
     }
 
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
-        if (paint == null) {
-            paint = new Paint();
-            paint.setStyle(Paint.Style.STROKE);
-            paint.setAntiAlias(true);
-            SweepGradient sweepGradient = new SweepGradient(((float) getWidth() / 2), ((float) getHeight() / 2),
-                    new int[]{Color.GREEN, Color.CYAN, Color.BLUE, Color.CYAN, Color.GREEN}, null);
-            paint.setShader(sweepGradient);
+        if (getWidth() == 0 || getHeight() == 0) {
+            return;
+        }
+        if (pathDirty) {
+            path.reset();
+            path.addRoundRect(bounds, radius, radius, Path.Direction.CW);
+            pathDirty = false;
+            cacheDirty = true;
+        }
+        if (cacheMode != CACHE_BITMAP) {
+            canvas.drawPath(path, paint);
+            return;
+        }
+        if (cache == null) {
+            cache = Bitmap.createBitmap(getWidth(), getHeight(), Bitmap.Config.ARGB_8888);
+            cacheCanvas.setBitmap(cache);
+            cacheDirty = true;
+        }
+        if (cacheDirty) {
+            cache.eraseColor(Color.TRANSPARENT);
+            cacheCanvas.drawPath(path, paint);
+            cacheDirty = false;
         }
-        drawBorder(canvas, 6);
+        canvas.drawBitmap(cache, 0, 0, null);
     }
 
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        if (cache != null) {
+            cache.recycle();
+            cache = null;
+        }
+    }
 
-    private void drawBorder(Canvas canvas, int rectThickness) {
-        if (canvas == null) {
+    /**
+     * 设置边框的缓存方式
+     *
+     * @param mode {@link #CACHE_NONE}、{@link #CACHE_HARDWARE_LAYER}或{@link #CACHE_BITMAP}
+     */
+    public void setCacheMode(int mode) {
+        if (mode != CACHE_NONE && mode != CACHE_HARDWARE_LAYER && mode != CACHE_BITMAP) {
+            throw new IllegalArgumentException("unknown cache mode: " + mode);
+        }
+        if (cacheMode == mode) {
             return;
         }
-        paint.setStrokeWidth(rectThickness);
-        Path drawPath = new Path();
-        drawPath.addRoundRect(new RectF(0, 0, getWidth(), getHeight()), radius, radius, Path.Direction.CW);
-        canvas.drawPath(drawPath, paint);
+        cacheMode = mode;
+        setLayerType(mode == CACHE_HARDWARE_LAYER ? LAYER_TYPE_HARDWARE : LAYER_TYPE_NONE, null);
+        if (mode != CACHE_BITMAP && cache != null) {
+            cache.recycle();
+            cache = null;
+        }
+        invalidate();
+    }
+
+    public int getCacheMode() {
+        return cacheMode;
     }
 
     public void turnRound() {
@@ -54,6 +138,13 @@ public class RoundBorderView extends View {
     }
 
     public void setRadius(int radius) {
-        this.radius = radius;
+        if (this.radius != radius) {
+            this.radius = radius;
+            pathDirty = true;
+        }
+    }
+
+    public int getRadius() {
+        return radius;
     }
-}
\ No newline at end of file
+}
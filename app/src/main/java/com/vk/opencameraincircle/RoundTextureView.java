@@ -2,7 +2,6 @@ package com.vk.opencameraincircle;
 
 import android.content.Context;
 import android.graphics.Outline;
-import android.graphics.Rect;
 import android.util.AttributeSet;
 import android.view.TextureView;
 import android.view.View;
@@ -17,8 +16,8 @@ public class RoundTextureView extends TextureView {
         setOutlineProvider(new ViewOutlineProvider() {
             @Override
             public void getOutline(View view, Outline outline) {
-                Rect rect = new Rect(0, 0, view.getMeasuredWidth(), view.getMeasuredHeight());
-                outline.setRoundRect(rect, radius);
+                //直接传入边界，拖动半径时不分配对象
+                outline.setRoundRect(0, 0, view.getMeasuredWidth(), view.getMeasuredHeight(), radius);
             }
         });
         setClipToOutline(true);
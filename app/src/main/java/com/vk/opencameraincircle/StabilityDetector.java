@@ -0,0 +1,180 @@
+package com.vk.opencameraincircle;
+
+/**
+ * 画面稳定检测器，把nv21亮度平面圆形区域缩小为网格，比较相邻两帧网格的平均亮度差。
+ * 亮度差持续低于阈值达到指定时间时触发一次，之后需画面重新晃动才会再次触发。
+ * 配置变化时才分配内存，逐帧检测不分配内存
+ */
+public class StabilityDetector {
+    /**
+     * 每个网格单元内每个方向的采样数
+     */
+    private static final int SAMPLES_PER_AXIS = 4;
+
+    private final int gridSize;
+    private int frameWidth;
+    private int frameHeight;
+    private float radiusRatio = 1f;
+    private float threshold = 4f;
+    private long holdNs = 800 * 1000_000L;
+
+    /**
+     * 圆内网格单元左上角采样点在帧中的位置
+     */
+    private int[] cellOrigins;
+    private int cellCount;
+    /**
+     * 单元内采样点相对左上角的偏移
+     */
+    private int[] sampleOffsets;
+    private int[] previous;
+    private int[] current;
+    private boolean hasPrevious;
+    private long stableSinceNs = -1;
+    private boolean triggered;
+    private float lastMotion;
+
+    /**
+     * @param gridSize 圆的外接正方形每个方向划分的单元数
+     */
+    public StabilityDetector(int gridSize) {
+        if (gridSize < 2) {
+            throw new IllegalArgumentException("gridSize must be at least 2");
+        }
+        this.gridSize = gridSize;
+    }
+
+    /**
+     * 设置帧的尺寸
+     */
+    public synchronized void configure(int frameWidth, int frameHeight) {
+        if (frameWidth <= 0 || frameHeight <= 0) {
+            throw new IllegalArgumentException("invalid frame size " + frameWidth + "x" + frameHeight);
+        }
+        this.frameWidth = frameWidth;
+        this.frameHeight = frameHeight;
+        update();
+    }
+
+    /**
+     * @param radiusRatio 半径与帧短边一半的比值，取值(0, 1]，与{@link Nv21CircleCropper#setRadiusRatio(float)}一致
+     */
+    public synchronized void setRadiusRatio(float radiusRatio) {
+        if (radiusRatio <= 0 || radiusRatio > 1) {
+            throw new IllegalArgumentException("radiusRatio must be in (0, 1]: " + radiusRatio);
+        }
+        this.radiusRatio = radiusRatio;
+        update();
+    }
+
+    /**
+     * @param threshold 视为稳定的最大平均亮度差，0~255
+     */
+    public synchronized void setThreshold(float threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * @param holdMs 需要保持稳定的时间
+     */
+    public synchronized void setHoldTime(long holdMs) {
+        holdNs = holdMs * 1000_000L;
+    }
+
+    /**
+     * 清除之前的帧和计时，重新开始检测
+     */
+    public synchronized void reset() {
+        hasPrevious = false;
+        stableSinceNs = -1;
+        triggered = false;
+        lastMotion = 0;
+    }
+
+    /**
+     * @return 最近一次检测的平均亮度差
+     */
+    public synchronized float getLastMotion() {
+        return lastMotion;
+    }
+
+    private void update() {
+        if (frameWidth == 0) {
+            return;
+        }
+        int side = Math.max(gridSize, Math.round(Math.min(frameWidth, frameHeight) * radiusRatio));
+        int cell = side / gridSize;
+        int left = (frameWidth - cell * gridSize) / 2;
+        int top = (frameHeight - cell * gridSize) / 2;
+        float center = gridSize / 2f;
+        float radius2 = center * center;
+        cellOrigins = new int[gridSize * gridSize];
+        cellCount = 0;
+        for (int gy = 0; gy < gridSize; gy++) {
+            for (int gx = 0; gx < gridSize; gx++) {
+                //单元中心在圆内才参与比较
+                float dx = gx + 0.5f - center;
+                float dy = gy + 0.5f - center;
+                if (dx * dx + dy * dy <= radius2) {
+                    cellOrigins[cellCount++] = (top + gy * cell) * frameWidth + left + gx * cell;
+                }
+            }
+        }
+        int samples = Math.min(SAMPLES_PER_AXIS, cell);
+        int stride = cell / samples;
+        sampleOffsets = new int[samples * samples];
+        for (int sy = 0; sy < samples; sy++) {
+            for (int sx = 0; sx < samples; sx++) {
+                sampleOffsets[sy * samples + sx] = sy * stride * frameWidth + sx * stride;
+            }
+        }
+        previous = new int[cellCount];
+        current = new int[cellCount];
+        reset();
+    }
+
+    /**
+     * 检测一帧
+     *
+     * @param nv21        nv21数据，只读取亮度平面
+     * @param timestampNs 帧的时间
+     * @return 本帧达到稳定条件、需要触发拍照时返回true，每次稳定只返回一次
+     */
+    public synchronized boolean update(byte[] nv21, long timestampNs) {
+        if (cellCount == 0) {
+            return false;
+        }
+        int[] offsets = sampleOffsets;
+        long diff = 0;
+        for (int c = 0; c < cellCount; c++) {
+            int origin = cellOrigins[c];
+            int sum = 0;
+            for (int offset : offsets) {
+                sum += nv21[origin + offset] & 0xFF;
+            }
+            diff += Math.abs(sum - previous[c]);
+            current[c] = sum;
+        }
+        int[] swap = previous;
+        previous = current;
+        current = swap;
+        if (!hasPrevious) {
+            hasPrevious = true;
+            return false;
+        }
+        lastMotion = (float) diff / (cellCount * offsets.length);
+        if (lastMotion > threshold) {
+            stableSinceNs = -1;
+            triggered = false;
+            return false;
+        }
+        if (stableSinceNs < 0) {
+            stableSinceNs = timestampNs;
+        }
+        if (!triggered && timestampNs - stableSinceNs >= holdNs) {
+            triggered = true;
+            return true;
+        }
+        return false;
+    }
+}
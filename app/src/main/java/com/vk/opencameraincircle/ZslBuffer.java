@@ -0,0 +1,198 @@
+package com.vk.opencameraincircle;
+
+/**
+ * 零延迟拍照缓冲，和{@link CameraHelper}共同使用。预览帧由{@link FrameQualityAnalyzer}评分后提供，
+ * 只有能进入最近时间窗口内清晰度前几名的帧才会被裁剪、旋转后保存，拍照时直接取出窗口内最清晰的一帧。
+ * 缓冲区数量固定，保存和取出都不分配内存
+ */
+public class ZslBuffer {
+    /**
+     * 取出的一帧，使用完后需调用{@link #release(byte[])}归还
+     */
+    public static final class Frame {
+        private final byte[] nv21;
+        private final int side;
+        private final long timestampNs;
+        private final double score;
+
+        Frame(byte[] nv21, int side, long timestampNs, double score) {
+            this.nv21 = nv21;
+            this.side = side;
+            this.timestampNs = timestampNs;
+            this.score = score;
+        }
+
+        /**
+         * 已按显示方向旋转、镜像的正方形nv21数据
+         */
+        public byte[] getNv21() {
+            return nv21;
+        }
+
+        public int getSide() {
+            return side;
+        }
+
+        public long getTimestampNs() {
+            return timestampNs;
+        }
+
+        /**
+         * 清晰度，越大越清晰，只用于同一配置下的帧之间比较
+         */
+        public double getScore() {
+            return score;
+        }
+    }
+
+    private static final class Slot {
+        byte[] data;
+        long timestampNs;
+        double score;
+        boolean filled;
+        /**
+         * 已被取出，归还前不会被覆盖
+         */
+        boolean taken;
+    }
+
+    private final Nv21CircleCropper cropper = new Nv21CircleCropper();
+    private final Slot[] slots;
+    private final long windowNs;
+
+    /**
+     * @param capacity 保存的帧数
+     * @param windowMs 时间窗口，拍照时只在此时间内的帧中选择
+     */
+    public ZslBuffer(int capacity, long windowMs) {
+        if (capacity < 1 || windowMs <= 0) {
+            throw new IllegalArgumentException("capacity and window must be positive");
+        }
+        slots = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Slot();
+        }
+        windowNs = windowMs * 1000_000L;
+    }
+
+    /**
+     * 设置帧的参数，已保存的帧全部作废
+     *
+     * @see Nv21CircleCropper#configure(int, int, int, boolean)
+     */
+    public void configure(int frameWidth, int frameHeight, int displayOrientation, boolean isMirror) {
+        configure(frameWidth, frameHeight, displayOrientation, isMirror, false);
+    }
+
+    /**
+     * 设置帧的参数，已保存的帧全部作废
+     *
+     * @see Nv21CircleCropper#configure(int, int, int, boolean, boolean)
+     */
+    public synchronized void configure(int frameWidth, int frameHeight, int displayOrientation, boolean isMirror,
+                                       boolean frontFacing) {
+        cropper.configure(frameWidth, frameHeight, displayOrientation, isMirror, frontFacing);
+        clear();
+    }
+
+    /**
+     * @see Nv21CircleCropper#setRadiusRatio(float)
+     */
+    public synchronized void setRadiusRatio(float radiusRatio) {
+        cropper.setRadiusRatio(radiusRatio);
+        clear();
+    }
+
+    /**
+     * 作废已保存的帧，已取出的帧归还时直接丢弃
+     */
+    public synchronized void clear() {
+        for (Slot slot : slots) {
+            slot.filled = false;
+            if (slot.taken) {
+                slot.data = null;
+                slot.taken = false;
+            }
+        }
+    }
+
+    /**
+     * 提供一个预览帧，返回后不再持有
+     *
+     * @param nv21        预览帧
+     * @param timestampNs 帧到达的时间
+     * @param score       清晰度，如{@link FrameQualityAnalyzer.Score#getFocus()}
+     * @return 该帧是否被保存
+     */
+    public synchronized boolean offer(byte[] nv21, long timestampNs, double score) {
+        if (cropper.getOutputSide() == 0) {
+            return false;
+        }
+        //优先使用空闲或已过期的位置，否则替换窗口内最模糊的帧
+        Slot target = null;
+        Slot worst = null;
+        for (Slot slot : slots) {
+            if (slot.taken) {
+                continue;
+            }
+            if (!slot.filled || timestampNs - slot.timestampNs > windowNs) {
+                target = slot;
+                break;
+            }
+            if (worst == null || slot.score < worst.score) {
+                worst = slot;
+            }
+        }
+        if (target == null) {
+            if (worst == null || worst.score >= score) {
+                return false;
+            }
+            target = worst;
+        }
+        int size = cropper.getOutputBufferSize();
+        if (target.data == null || target.data.length != size) {
+            target.data = new byte[size];
+        }
+        cropper.crop(nv21, target.data);
+        target.timestampNs = timestampNs;
+        target.score = score;
+        target.filled = true;
+        return true;
+    }
+
+    /**
+     * 取出时间窗口内最清晰的一帧
+     *
+     * @param nowNs 当前时间，与{@link #offer(byte[], long, double)}的时间基准相同
+     * @return 没有可用的帧时返回null
+     */
+    public synchronized Frame takeSharpest(long nowNs) {
+        Slot best = null;
+        for (Slot slot : slots) {
+            if (!slot.filled || slot.taken || nowNs - slot.timestampNs > windowNs) {
+                continue;
+            }
+            if (best == null || slot.score > best.score) {
+                best = slot;
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+        best.taken = true;
+        return new Frame(best.data, cropper.getOutputSide(), best.timestampNs, best.score);
+    }
+
+    /**
+     * 归还取出的帧数据
+     */
+    public synchronized void release(byte[] nv21) {
+        for (Slot slot : slots) {
+            if (slot.taken && slot.data == nv21) {
+                slot.taken = false;
+                slot.filled = false;
+                return;
+            }
+        }
+    }
+}
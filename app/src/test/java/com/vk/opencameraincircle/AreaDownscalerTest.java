@@ -0,0 +1,191 @@
+package com.vk.opencameraincircle;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class AreaDownscalerTest {
+
+    @Test
+    public void scale_sameSize_isIdentity() {
+        int[] src = randomArgb(33, 17, 1);
+        int[] dst = new int[src.length];
+        new AreaDownscaler().scale(src, 33, 17, dst, 33, 17);
+        assertArrayEquals(src, dst);
+    }
+
+    @Test
+    public void scale_halfSize_averagesBlocks() {
+        int width = 8;
+        int height = 6;
+        int[] src = randomArgb(width, height, 2);
+        int[] dst = new int[width * height / 4];
+        new AreaDownscaler().scale(src, width, height, dst, width / 2, height / 2);
+        for (int y = 0; y < height / 2; y++) {
+            for (int x = 0; x < width / 2; x++) {
+                int expected = 0;
+                for (int shift = 0; shift < 32; shift += 8) {
+                    int sum = channel(src[(2 * y) * width + 2 * x], shift)
+                            + channel(src[(2 * y) * width + 2 * x + 1], shift)
+                            + channel(src[(2 * y + 1) * width + 2 * x], shift)
+                            + channel(src[(2 * y + 1) * width + 2 * x + 1], shift);
+                    expected |= ((sum + 2) / 4) << shift;
+                }
+                assertEquals(expected, dst[y * width / 2 + x]);
+            }
+        }
+    }
+
+    @Test
+    public void scale_solidColor_staysSolid() {
+        //非整数比例，检验每个输出的权重之和恰好为1
+        int[] src = new int[1001 * 333];
+        Arrays.fill(src, 0xFF7F3A01);
+        int[] dst = new int[997 * 7];
+        new AreaDownscaler().scale(src, 1001, 333, dst, 997, 7);
+        for (int pixel : dst) {
+            assertEquals(0xFF7F3A01, pixel);
+        }
+    }
+
+    @Test
+    public void scale_fractionalRatio_matchesExactAreaAverage() {
+        int srcWidth = 97;
+        int srcHeight = 61;
+        int dstWidth = 40;
+        int dstHeight = 29;
+        int[] src = randomArgb(srcWidth, srcHeight, 3);
+        int[] dst = new int[dstWidth * dstHeight];
+        new AreaDownscaler().scale(src, srcWidth, srcHeight, dst, dstWidth, dstHeight);
+        for (int y = 0; y < dstHeight; y++) {
+            for (int x = 0; x < dstWidth; x++) {
+                for (int shift = 0; shift < 32; shift += 8) {
+                    double expected = referenceAverage(src, srcWidth, srcHeight, dstWidth, dstHeight, x, y, shift);
+                    int actual = channel(dst[y * dstWidth + x], shift);
+                    assertTrue(expected + " vs " + actual, Math.abs(expected - actual) <= 1);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void scale_serialAndParallel_areIdentical() {
+        int srcWidth = 640;
+        int srcHeight = 480;
+        int[] src = randomArgb(srcWidth, srcHeight, 4);
+        int[] serial = new int[300 * 225];
+        new AreaDownscaler(ForkJoinPool.commonPool(), Integer.MAX_VALUE).scale(src, srcWidth, srcHeight,
+                serial, 300, 225);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            int[] parallel = new int[300 * 225];
+            new AreaDownscaler(pool, 1).scale(src, srcWidth, srcHeight, parallel, 300, 225);
+            assertArrayEquals(serial, parallel);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void scale_manyBands_matchesExactAreaAverage() {
+        //原图远高于一段的行数，检验段之间的边界行
+        int srcWidth = 23;
+        int srcHeight = 1001;
+        int dstWidth = 11;
+        int dstHeight = 377;
+        int[] src = randomArgb(srcWidth, srcHeight, 5);
+        int[] dst = new int[dstWidth * dstHeight];
+        new AreaDownscaler().scale(src, srcWidth, srcHeight, dst, dstWidth, dstHeight);
+        for (int y = 0; y < dstHeight; y++) {
+            for (int x = 0; x < dstWidth; x++) {
+                for (int shift = 0; shift < 32; shift += 8) {
+                    double expected = referenceAverage(src, srcWidth, srcHeight, dstWidth, dstHeight, x, y, shift);
+                    int actual = channel(dst[y * dstWidth + x], shift);
+                    assertTrue("row " + y + ": " + expected + " vs " + actual, Math.abs(expected - actual) <= 1);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void scale_rows_areStreamedInOrder() {
+        final int srcWidth = 40;
+        final int srcHeight = 900;
+        final int dstWidth = 30;
+        final int dstHeight = 500;
+        final int[] src = randomArgb(srcWidth, srcHeight, 6);
+        final int[] streamed = new int[dstWidth * dstHeight];
+        final int[] nextRow = {0};
+        final int[] maxRead = {0};
+        AreaDownscaler downscaler = new AreaDownscaler();
+        AreaDownscaler.RowSource source = new AreaDownscaler.RowSource() {
+            @Override
+            public void readRows(int firstRow, int rowCount, int[] out) {
+                assertTrue(firstRow >= 0 && firstRow + rowCount <= srcHeight);
+                maxRead[0] = Math.max(maxRead[0], rowCount);
+                System.arraycopy(src, firstRow * srcWidth, out, 0, rowCount * srcWidth);
+            }
+        };
+        AreaDownscaler.RowSink sink = new AreaDownscaler.RowSink() {
+            @Override
+            public void writeRows(int firstRow, int rowCount, int[] rows) {
+                assertEquals(nextRow[0], firstRow);
+                nextRow[0] += rowCount;
+                System.arraycopy(rows, 0, streamed, firstRow * dstWidth, rowCount * dstWidth);
+            }
+        };
+        //第二次调用复用第一次的缓冲区
+        downscaler.scale(source, srcWidth, srcHeight, sink, dstWidth, dstHeight);
+        nextRow[0] = 0;
+        downscaler.scale(source, srcWidth, srcHeight, sink, dstWidth, dstHeight);
+        assertEquals(dstHeight, nextRow[0]);
+        assertTrue("read " + maxRead[0] + " rows at once", maxRead[0] < srcHeight / 2);
+
+        int[] whole = new int[dstWidth * dstHeight];
+        new AreaDownscaler().scale(src, srcWidth, srcHeight, whole, dstWidth, dstHeight);
+        assertArrayEquals(whole, streamed);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void scale_upscale_isRejected() {
+        new AreaDownscaler().scale(new int[100], 10, 10, new int[110], 11, 10);
+    }
+
+    /**
+     * 按浮点面积直接计算输出像素(x, y)的一个通道
+     */
+    private static double referenceAverage(int[] src, int srcWidth, int srcHeight, int dstWidth, int dstHeight,
+                                           int x, int y, int shift) {
+        double scaleX = (double) srcWidth / dstWidth;
+        double scaleY = (double) srcHeight / dstHeight;
+        double left = x * scaleX;
+        double top = y * scaleY;
+        double sum = 0;
+        //浮点误差可能使区间端点略超出原图
+        for (int sy = (int) top; sy < Math.min(Math.ceil(top + scaleY), srcHeight); sy++) {
+            double coverY = Math.min(top + scaleY, sy + 1) - Math.max(top, sy);
+            for (int sx = (int) left; sx < Math.min(Math.ceil(left + scaleX), srcWidth); sx++) {
+                double coverX = Math.min(left + scaleX, sx + 1) - Math.max(left, sx);
+                sum += channel(src[sy * srcWidth + sx], shift) * coverX * coverY;
+            }
+        }
+        return sum / (scaleX * scaleY);
+    }
+
+    private static int channel(int pixel, int shift) {
+        return (pixel >>> shift) & 0xFF;
+    }
+
+    private static int[] randomArgb(int width, int height, long seed) {
+        int[] pixels = new int[width * height];
+        Random random = new Random(seed);
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextInt();
+        }
+        return pixels;
+    }
+}
@@ -0,0 +1,103 @@
+package com.vk.opencameraincircle;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CircleOutputTest {
+    private static final int SIDE = 5;
+
+    @Test
+    public void forPreview_backCamera_keepsOrientation() {
+        CircleOutput output = new CircleOutput.Builder().build().forPreview(450, true, false, 640, 480);
+        assertEquals(90, output.getOrientation());
+        assertTrue(output.isMirror());
+    }
+
+    @Test
+    public void forPreview_matchesPreviewTransform_forAllOrientations() {
+        CircleOutput base = new CircleOutput.Builder().radiusRatio(0.5f).build();
+        for (int facing = 0; facing < 2; facing++) {
+            for (int orientation = 0; orientation < 360; orientation += 90) {
+                for (int mirror = 0; mirror < 2; mirror++) {
+                    CircleOutput output = base.forPreview(orientation, mirror == 1, facing == 1, 640, 480);
+                    assertEquals(0.5f, output.getRadiusRatio(), 0);
+                    String message = "front " + facing + " orientation " + orientation + " mirror " + mirror;
+                    for (int y = 0; y < SIDE; y++) {
+                        for (int x = 0; x < SIDE; x++) {
+                            int[] expected = preview(x, y, facing == 1, orientation, mirror == 1);
+                            int[] actual = render(x, y, output.getOrientation(), output.isMirror());
+                            assertArrayEquals(message, expected, actual);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void squareSide_withoutPreview_usesShortSide() {
+        CircleOutput output = new CircleOutput.Builder().radiusRatio(0.5f).build();
+        assertEquals(1500, output.squareSide(4000, 3000));
+    }
+
+    @Test
+    public void squareSide_widerPreview_usesPreviewRegionOfPicture() {
+        //16:9预览对应4:3照片中间4000x2250的区域
+        CircleOutput output = new CircleOutput.Builder().radiusRatio(0.5f).build()
+                .forPreview(90, false, false, 1920, 1080);
+        assertEquals(1125, output.squareSide(4000, 3000));
+    }
+
+    @Test
+    public void squareSide_narrowerPreview_usesPreviewRegionOfPicture() {
+        //4:3预览对应1:1照片中间3000x2250的区域
+        CircleOutput output = new CircleOutput.Builder().radiusRatio(1f).build()
+                .forPreview(0, false, true, 640, 480);
+        assertEquals(2250, output.squareSide(3000, 3000));
+        //宽高比相同时与照片短边一致
+        assertEquals(1080, output.squareSide(1440, 1080));
+    }
+
+    @Test
+    public void forCroppedFrame_usesWholeFrame() {
+        CircleOutput output = new CircleOutput.Builder().radiusRatio(0.3f).orientation(90).mirror(true).build()
+                .forPreview(90, true, true, 1920, 1080).forCroppedFrame();
+        assertEquals(0, output.getOrientation());
+        assertFalse(output.isMirror());
+        assertEquals(480, output.squareSide(480, 480));
+    }
+
+    /**
+     * 系统预览中像素(x, y)的位置：前置相机先水平翻转，再顺时针旋转，镜像显示时再水平翻转
+     */
+    private static int[] preview(int x, int y, boolean frontFacing, int orientation, boolean mirror) {
+        int[] point = {x, y};
+        if (frontFacing) {
+            point = flip(point);
+        }
+        for (int i = 0; i < orientation / 90; i++) {
+            point = rotateClockwise(point);
+        }
+        return mirror ? flip(point) : point;
+    }
+
+    /**
+     * 与CircleOutput#render相同的顺序：顺时针旋转，再按mirror水平翻转
+     */
+    private static int[] render(int x, int y, int orientation, boolean mirror) {
+        int[] point = {x, y};
+        for (int i = 0; i < orientation / 90; i++) {
+            point = rotateClockwise(point);
+        }
+        return mirror ? flip(point) : point;
+    }
+
+    private static int[] rotateClockwise(int[] point) {
+        return new int[]{SIDE - 1 - point[1], point[0]};
+    }
+
+    private static int[] flip(int[] point) {
+        return new int[]{SIDE - 1 - point[0], point[1]};
+    }
+}
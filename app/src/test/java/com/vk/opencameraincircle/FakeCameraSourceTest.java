@@ -0,0 +1,158 @@
+package com.vk.opencameraincircle;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FakeCameraSourceTest {
+    private static final int WIDTH = 8;
+    private static final int HEIGHT = 6;
+
+    @Test
+    public void source_deliversLifecycleAndFrames() {
+        FakeCameraSource source = new FakeCameraSource(WIDTH, HEIGHT, 90, true);
+        RecordingListener listener = new RecordingListener();
+        source.setListener(listener);
+        byte[] nv21 = pattern(WIDTH * HEIGHT * 3 / 2);
+
+        assertFalse(source.emitFrame(nv21, 1));
+        source.start();
+        assertTrue(source.emitFrame(nv21, 2));
+        assertTrue(source.emitFrame(nv21, 3));
+        source.stop();
+        assertFalse(source.emitFrame(nv21, 4));
+
+        assertEquals("opened 8x6 90 true", listener.events.get(0));
+        assertEquals("frame 2", listener.events.get(1));
+        assertEquals("frame 3", listener.events.get(2));
+        assertEquals("closed", listener.events.get(3));
+        assertEquals(4, listener.events.size());
+        assertEquals(2, source.getFramesEmitted());
+        assertArrayEquals(nv21, listener.lastCopy);
+    }
+
+    @Test
+    public void source_takePicture_reportsDataOrError() {
+        FakeCameraSource source = new FakeCameraSource(WIDTH, HEIGHT, 0, false);
+        final List<String> results = new ArrayList<>();
+        CameraSource.PictureCallback callback = new CameraSource.PictureCallback() {
+            @Override
+            public void onPictureTaken(byte[] jpeg) {
+                results.add("taken " + jpeg.length);
+            }
+
+            @Override
+            public void onPictureError(Exception e) {
+                results.add("error");
+            }
+        };
+        source.takePicture(callback);
+        source.start();
+        source.takePicture(callback);
+        source.setPictureData(new byte[]{1, 2, 3});
+        source.takePicture(callback);
+
+        assertEquals(3, results.size());
+        assertEquals("error", results.get(0));
+        assertEquals("error", results.get(1));
+        assertEquals("taken 3", results.get(2));
+    }
+
+    @Test
+    public void frame_nv21Array_isExposedWithoutCopy() {
+        byte[] nv21 = pattern(WIDTH * HEIGHT * 3 / 2);
+        CameraFrame frame = new CameraFrame();
+        frame.setNv21(nv21, WIDTH, HEIGHT, 0);
+        assertSame(nv21, frame.getNv21Array());
+        assertEquals(2, frame.getUvPixelStride());
+        //u平面从第一个u开始，v平面从第一个v开始
+        assertEquals(nv21[WIDTH * HEIGHT + 1], frame.getUPlane().get(0));
+        assertEquals(nv21[WIDTH * HEIGHT], frame.getVPlane().get(0));
+    }
+
+    @Test
+    public void frame_nv21Views_areReusedPerArray() {
+        byte[] first = pattern(WIDTH * HEIGHT * 3 / 2);
+        byte[] second = pattern(WIDTH * HEIGHT * 3 / 2);
+        CameraFrame frame = new CameraFrame();
+        frame.setNv21(first, WIDTH, HEIGHT, 0);
+        ByteBuffer y = frame.getYPlane();
+        y.position(5);
+        frame.setNv21(second, WIDTH, HEIGHT, 1);
+        assertNotSame(y, frame.getYPlane());
+        frame.setNv21(first, WIDTH, HEIGHT, 2);
+        assertSame(y, frame.getYPlane());
+        assertEquals(0, y.position());
+        //尺寸变化时重建
+        frame.setNv21(first, WIDTH / 2, HEIGHT / 2, 3);
+        assertNotSame(y, frame.getYPlane());
+        assertEquals(WIDTH * HEIGHT / 4, frame.getYPlane().remaining());
+    }
+
+    @Test
+    public void frame_copyToNv21_handlesPlanarAndPaddedRows() {
+        int yStride = WIDTH + 4;
+        int uvStride = WIDTH / 2 + 2;
+        byte[] expected = pattern(WIDTH * HEIGHT * 3 / 2);
+        ByteBuffer y = ByteBuffer.allocate(yStride * HEIGHT);
+        ByteBuffer u = ByteBuffer.allocate(uvStride * HEIGHT / 2);
+        ByteBuffer v = ByteBuffer.allocate(uvStride * HEIGHT / 2);
+        for (int row = 0; row < HEIGHT; row++) {
+            for (int col = 0; col < WIDTH; col++) {
+                y.put(row * yStride + col, expected[row * WIDTH + col]);
+            }
+        }
+        for (int row = 0; row < HEIGHT / 2; row++) {
+            for (int col = 0; col < WIDTH / 2; col++) {
+                int index = WIDTH * HEIGHT + row * WIDTH + col * 2;
+                v.put(row * uvStride + col, expected[index]);
+                u.put(row * uvStride + col, expected[index + 1]);
+            }
+        }
+        CameraFrame frame = new CameraFrame();
+        frame.setPlanes(WIDTH, HEIGHT, 0, y, yStride, u, v, uvStride, 1);
+        assertNull(frame.getNv21Array());
+        byte[] out = new byte[WIDTH * HEIGHT * 3 / 2];
+        frame.copyToNv21(out);
+        assertArrayEquals(expected, out);
+    }
+
+    private static byte[] pattern(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 7 + 3);
+        }
+        return data;
+    }
+
+    private static final class RecordingListener implements CameraSource.Listener {
+        final List<String> events = new ArrayList<>();
+        byte[] lastCopy;
+
+        @Override
+        public void onSourceOpened(CameraSource source, int width, int height, int displayOrientation, boolean isMirror) {
+            events.add("opened " + width + "x" + height + " " + displayOrientation + " " + isMirror);
+        }
+
+        @Override
+        public void onSourceFrame(CameraSource source, CameraFrame frame) {
+            events.add("frame " + frame.getTimestampNs());
+            lastCopy = new byte[frame.getWidth() * frame.getHeight() * 3 / 2];
+            frame.copyToNv21(lastCopy);
+        }
+
+        @Override
+        public void onSourceClosed(CameraSource source) {
+            events.add("closed");
+        }
+
+        @Override
+        public void onSourceError(CameraSource source, Exception e) {
+            events.add("error");
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.vk.opencameraincircle;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class Nv21CircleCropperTest {
+    private static final int WIDTH = 16;
+    private static final int HEIGHT = 12;
+
+    @Test
+    public void crop_matchesReference_forAllOrientations() {
+        byte[] nv21 = pattern(WIDTH, HEIGHT);
+        for (int orientation = 0; orientation < 360; orientation += 90) {
+            for (int mirror = 0; mirror < 2; mirror++) {
+                Nv21CircleCropper cropper = new Nv21CircleCropper();
+                cropper.configure(WIDTH, HEIGHT, orientation, mirror == 1);
+                byte[] out = new byte[cropper.getOutputBufferSize()];
+                int side = cropper.crop(nv21, out);
+                assertEquals(HEIGHT, side);
+                byte[] expected = reference(nv21, WIDTH, HEIGHT, cropper.getCropLeft(), cropper.getCropTop(),
+                        side, false, orientation, mirror == 1);
+                assertArrayEquals("orientation " + orientation + " mirror " + mirror, expected, out);
+            }
+        }
+    }
+
+    @Test
+    public void crop_matchesReference_forFrontCamera() {
+        byte[] nv21 = pattern(WIDTH, HEIGHT);
+        for (int orientation = 0; orientation < 360; orientation += 90) {
+            for (int mirror = 0; mirror < 2; mirror++) {
+                Nv21CircleCropper cropper = new Nv21CircleCropper();
+                cropper.configure(WIDTH, HEIGHT, orientation, mirror == 1, true);
+                byte[] out = new byte[cropper.getOutputBufferSize()];
+                int side = cropper.crop(nv21, out);
+                byte[] expected = reference(nv21, WIDTH, HEIGHT, cropper.getCropLeft(), cropper.getCropTop(),
+                        side, true, orientation, mirror == 1);
+                assertArrayEquals("front orientation " + orientation + " mirror " + mirror, expected, out);
+            }
+        }
+    }
+
+    @Test
+    public void crop_usesRadiusRatio() {
+        Nv21CircleCropper cropper = new Nv21CircleCropper();
+        cropper.configure(640, 480, 90, true);
+        cropper.setRadiusRatio(0.5f);
+        assertEquals(240, cropper.getOutputSide());
+        assertEquals(200, cropper.getCropLeft());
+        assertEquals(120, cropper.getCropTop());
+        assertEquals(240 * 240 * 3 / 2, cropper.getOutputBufferSize());
+    }
+
+    @Test
+    public void crop_masksOutsideCircle() {
+        byte[] nv21 = new byte[WIDTH * HEIGHT * 3 / 2];
+        Arrays.fill(nv21, (byte) 200);
+        Nv21CircleCropper cropper = new Nv21CircleCropper();
+        cropper.configure(WIDTH, HEIGHT, 0, false);
+        cropper.setMaskEnabled(true);
+        byte[] out = new byte[cropper.getOutputBufferSize()];
+        int side = cropper.crop(nv21, out);
+        //角落在圆外，中心在圆内
+        assertEquals(0, out[0]);
+        assertEquals(0, out[side * side - 1]);
+        assertEquals((byte) 200, out[(side / 2) * side + side / 2]);
+        assertEquals((byte) 128, out[side * side]);
+        assertEquals((byte) 200, out[side * side + (side / 4) * side + side / 2]);
+    }
+
+    private static byte[] pattern(int width, int height) {
+        byte[] data = new byte[width * height * 3 / 2];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 7 + i / width);
+        }
+        return data;
+    }
+
+    /**
+     * 按系统预览的顺序逐步实现：裁剪，前置相机先水平翻转，顺时针旋转，镜像显示时再水平翻转
+     */
+    private static byte[] reference(byte[] nv21, int width, int height, int left, int top, int side,
+                                    boolean frontFacing, int orientation, boolean mirror) {
+        int half = side / 2;
+        byte[][] y = new byte[side][side];
+        byte[][] v = new byte[half][half];
+        byte[][] u = new byte[half][half];
+        for (int row = 0; row < side; row++) {
+            for (int col = 0; col < side; col++) {
+                y[row][col] = nv21[(top + row) * width + left + col];
+            }
+        }
+        for (int row = 0; row < half; row++) {
+            for (int col = 0; col < half; col++) {
+                int index = width * height + (top / 2 + row) * width + left + col * 2;
+                v[row][col] = nv21[index];
+                u[row][col] = nv21[index + 1];
+            }
+        }
+        if (frontFacing) {
+            y = flip(y);
+            v = flip(v);
+            u = flip(u);
+        }
+        for (int i = 0; i < orientation / 90; i++) {
+            y = rotateClockwise(y);
+            v = rotateClockwise(v);
+            u = rotateClockwise(u);
+        }
+        if (mirror) {
+            y = flip(y);
+            v = flip(v);
+            u = flip(u);
+        }
+        byte[] out = new byte[side * side * 3 / 2];
+        int index = 0;
+        for (byte[] row : y) {
+            for (byte value : row) {
+                out[index++] = value;
+            }
+        }
+        for (int row = 0; row < half; row++) {
+            for (int col = 0; col < half; col++) {
+                out[index++] = v[row][col];
+                out[index++] = u[row][col];
+            }
+        }
+        return out;
+    }
+
+    private static byte[][] rotateClockwise(byte[][] src) {
+        int n = src.length;
+        byte[][] dst = new byte[n][n];
+        for (int row = 0; row < n; row++) {
+            for (int col = 0; col < n; col++) {
+                dst[col][n - 1 - row] = src[row][col];
+            }
+        }
+        return dst;
+    }
+
+    private static byte[][] flip(byte[][] src) {
+        int n = src.length;
+        byte[][] dst = new byte[n][n];
+        for (int row = 0; row < n; row++) {
+            for (int col = 0; col < n; col++) {
+                dst[row][n - 1 - col] = src[row][col];
+            }
+        }
+        return dst;
+    }
+}
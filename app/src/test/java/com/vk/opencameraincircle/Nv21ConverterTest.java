@@ -0,0 +1,137 @@
+package com.vk.opencameraincircle;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class Nv21ConverterTest {
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+
+    @Test
+    public void coefficients_matchBt601LimitedRange() {
+        assertEquals(Math.round(255.0 / 219 * 65536), Nv21Converter.COEFF_Y);
+        assertEquals(Math.round(1.402 * 255 / 224 * 65536), Nv21Converter.COEFF_RV);
+        assertEquals(Math.round(0.202008 / 0.587 * 255 / 224 * 65536), Nv21Converter.COEFF_GU);
+        assertEquals(Math.round(0.419198 / 0.587 * 255 / 224 * 65536), Nv21Converter.COEFF_GV);
+        assertEquals(Math.round(1.772 * 255 / 224 * 65536), Nv21Converter.COEFF_BU);
+    }
+
+    @Test
+    public void toArgb_serialAndParallel_matchReference() {
+        byte[] nv21 = randomNv21(WIDTH, HEIGHT, 1);
+        int[] expected = referenceArgb(nv21, WIDTH, HEIGHT);
+
+        int[] serial = new int[WIDTH * HEIGHT];
+        new Nv21Converter(ForkJoinPool.commonPool(), Integer.MAX_VALUE).toArgb(nv21, WIDTH, HEIGHT, serial);
+        assertArrayEquals(expected, serial);
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            int[] parallel = new int[WIDTH * HEIGHT];
+            new Nv21Converter(pool, 1).toArgb(nv21, WIDTH, HEIGHT, parallel);
+            assertArrayEquals(expected, parallel);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void toArgb_extremeValues_areClamped() {
+        //全0和全255覆盖查表的上下边界
+        for (int value : new int[]{0, 255}) {
+            byte[] nv21 = new byte[4 * 4 * 3 / 2];
+            Arrays.fill(nv21, (byte) value);
+            int[] argb = new int[16];
+            new Nv21Converter().toArgb(nv21, 4, 4, argb);
+            assertArrayEquals(referenceArgb(nv21, 4, 4), argb);
+        }
+    }
+
+    @Test
+    public void toArgb_roi_matchesReferenceRegion() {
+        byte[] nv21 = randomNv21(WIDTH, HEIGHT, 2);
+        int[] full = referenceArgb(nv21, WIDTH, HEIGHT);
+        //奇数起点和尺寸，区域跨越色度采样的边界
+        int left = 37;
+        int top = 51;
+        int roiWidth = 65;
+        int roiHeight = 33;
+        int[] roi = new int[roiWidth * roiHeight];
+        new Nv21Converter().toArgb(nv21, WIDTH, HEIGHT, left, top, roiWidth, roiHeight, roi);
+        for (int y = 0; y < roiHeight; y++) {
+            for (int x = 0; x < roiWidth; x++) {
+                assertEquals(full[(top + y) * WIDTH + left + x], roi[y * roiWidth + x]);
+            }
+        }
+    }
+
+    @Test
+    public void toI420AndNv12_matchReference() {
+        byte[] nv21 = randomNv21(WIDTH, HEIGHT, 3);
+        int frameSize = WIDTH * HEIGHT;
+        byte[] expectedI420 = new byte[frameSize * 3 / 2];
+        byte[] expectedNv12 = new byte[frameSize * 3 / 2];
+        System.arraycopy(nv21, 0, expectedI420, 0, frameSize);
+        System.arraycopy(nv21, 0, expectedNv12, 0, frameSize);
+        for (int i = 0; i < frameSize / 4; i++) {
+            byte v = nv21[frameSize + i * 2];
+            byte u = nv21[frameSize + i * 2 + 1];
+            expectedI420[frameSize + i] = u;
+            expectedI420[frameSize + frameSize / 4 + i] = v;
+            expectedNv12[frameSize + i * 2] = u;
+            expectedNv12[frameSize + i * 2 + 1] = v;
+        }
+
+        for (int threshold : new int[]{1, Integer.MAX_VALUE}) {
+            Nv21Converter converter = new Nv21Converter(ForkJoinPool.commonPool(), threshold);
+            byte[] i420 = new byte[frameSize * 3 / 2];
+            byte[] nv12 = new byte[frameSize * 3 / 2];
+            converter.toI420(nv21, WIDTH, HEIGHT, i420);
+            converter.toNv12(nv21, WIDTH, HEIGHT, nv12);
+            assertArrayEquals(expectedI420, i420);
+            assertArrayEquals(expectedNv12, nv12);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void toArgb_roiOutsideFrame_isRejected() {
+        new Nv21Converter().toArgb(new byte[WIDTH * HEIGHT * 3 / 2], WIDTH, HEIGHT, WIDTH - 10, 0, 20, 10,
+                new int[200]);
+    }
+
+    /**
+     * 逐像素直接按公式计算，不查表、不拆分
+     */
+    private static int[] referenceArgb(byte[] nv21, int width, int height) {
+        int[] argb = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int luma = nv21[y * width + x] & 0xFF;
+                int uvIndex = width * height + (y / 2) * width + (x / 2) * 2;
+                int v = (nv21[uvIndex] & 0xFF) - 128;
+                int u = (nv21[uvIndex + 1] & 0xFF) - 128;
+                int c = Nv21Converter.COEFF_Y * (luma - 16) + 32768;
+                int r = clamp((c + Nv21Converter.COEFF_RV * v) >> 16);
+                int g = clamp((c - Nv21Converter.COEFF_GU * u - Nv21Converter.COEFF_GV * v) >> 16);
+                int b = clamp((c + Nv21Converter.COEFF_BU * u) >> 16);
+                argb[y * width + x] = 0xFF000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+        return argb;
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+
+    private static byte[] randomNv21(int width, int height, long seed) {
+        byte[] data = new byte[width * height * 3 / 2];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
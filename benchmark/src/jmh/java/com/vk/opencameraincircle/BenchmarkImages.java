@@ -0,0 +1,56 @@
+package com.vk.opencameraincircle;
+
+import java.util.Random;
+
+/**
+ * 基准测试用的合成图像：平滑渐变叠加纹理和噪声，接近真实画面的压缩率和清晰度，结果可重复
+ */
+final class BenchmarkImages {
+    private BenchmarkImages() {
+    }
+
+    /**
+     * @param size 形如"1280x720"
+     * @return {宽度, 高度}
+     */
+    static int[] parseSize(String size) {
+        int x = size.indexOf('x');
+        return new int[]{Integer.parseInt(size.substring(0, x)), Integer.parseInt(size.substring(x + 1))};
+    }
+
+    static byte[] nv21(int width, int height, long seed) {
+        Random random = new Random(seed);
+        byte[] data = new byte[width * height * 3 / 2];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int texture = ((x / 16 + y / 16) & 1) * 24;
+                int value = 40 + x * 120 / width + y * 60 / height + texture + random.nextInt(9) - 4;
+                data[y * width + x] = (byte) Math.max(0, Math.min(255, value));
+            }
+        }
+        for (int i = width * height; i < data.length; i += 2) {
+            data[i] = (byte) (128 + random.nextInt(17) - 8);
+            data[i + 1] = (byte) (128 + random.nextInt(17) - 8);
+        }
+        return data;
+    }
+
+    static int[] argb(int width, int height, long seed) {
+        Random random = new Random(seed);
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int texture = ((x / 16 + y / 16) & 1) * 24;
+                int r = clamp(60 + x * 150 / width + texture + random.nextInt(9) - 4);
+                int g = clamp(50 + y * 120 / height + texture + random.nextInt(9) - 4);
+                int b = clamp(90 + (x + y) * 80 / (width + height) + random.nextInt(9) - 4);
+                pixels[y * width + x] = 0xFF000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+        return pixels;
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+}
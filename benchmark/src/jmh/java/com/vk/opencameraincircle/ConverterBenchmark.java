@@ -0,0 +1,78 @@
+package com.vk.opencameraincircle;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * nv21格式转换：整帧串行与并行、圆形区域外接正方形的区域转换
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ConverterBenchmark {
+    @Param({"640x480", "1280x720", "1920x1080"})
+    public String previewSize;
+
+    private int width;
+    private int height;
+    private byte[] nv21;
+    private int[] argb;
+    private byte[] yuv;
+    private Nv21Converter serial;
+    private Nv21Converter parallel;
+
+    @Setup
+    public void setUp() {
+        int[] size = BenchmarkImages.parseSize(previewSize);
+        width = size[0];
+        height = size[1];
+        nv21 = BenchmarkImages.nv21(width, height, 3);
+        argb = new int[width * height];
+        yuv = new byte[width * height * 3 / 2];
+        serial = new Nv21Converter(ForkJoinPool.commonPool(), Integer.MAX_VALUE);
+        parallel = new Nv21Converter(ForkJoinPool.commonPool(), 1);
+    }
+
+    @Benchmark
+    public int[] toArgbSerial() {
+        serial.toArgb(nv21, width, height, argb);
+        return argb;
+    }
+
+    @Benchmark
+    public int[] toArgbParallel() {
+        parallel.toArgb(nv21, width, height, argb);
+        return argb;
+    }
+
+    /**
+     * 只转换预览中间的圆形区域
+     */
+    @Benchmark
+    public int[] toArgbCircleRoi() {
+        int side = Math.min(width, height);
+        serial.toArgb(nv21, width, height, (width - side) / 2, (height - side) / 2, side, side, argb);
+        return argb;
+    }
+
+    @Benchmark
+    public byte[] toI420() {
+        parallel.toI420(nv21, width, height, yuv);
+        return yuv;
+    }
+
+    @Benchmark
+    public byte[] toNv12() {
+        parallel.toNv12(nv21, width, height, yuv);
+        return yuv;
+    }
+}
@@ -0,0 +1,81 @@
+package com.vk.opencameraincircle;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 每个预览帧都会执行的处理：圆形裁剪旋转、质量分析、稳定检测和零延迟拍照缓存
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FrameBenchmark {
+    private static final long FRAME_INTERVAL_NS = 33_333_333L;
+
+    @Param({"640x480", "1280x720", "1920x1080"})
+    public String previewSize;
+
+    /**
+     * 0为不旋转，270加镜像对应竖屏前置摄像头
+     */
+    @Param({"0", "90", "270"})
+    public int displayOrientation;
+
+    private byte[] nv21;
+    private byte[] cropped;
+    private Nv21CircleCropper cropper;
+    private FrameQualityAnalyzer analyzer;
+    private StabilityDetector stabilityDetector;
+    private ZslBuffer zslBuffer;
+    private long timestampNs;
+
+    @Setup
+    public void setUp() {
+        int[] size = BenchmarkImages.parseSize(previewSize);
+        nv21 = BenchmarkImages.nv21(size[0], size[1], 1);
+        boolean mirror = displayOrientation == 270;
+        cropper = new Nv21CircleCropper();
+        cropper.configure(size[0], size[1], displayOrientation, mirror);
+        cropped = new byte[cropper.getOutputBufferSize()];
+        analyzer = new FrameQualityAnalyzer();
+        analyzer.configure(size[0], size[1]);
+        stabilityDetector = new StabilityDetector(16);
+        stabilityDetector.configure(size[0], size[1]);
+        zslBuffer = new ZslBuffer(6, 500);
+        zslBuffer.configure(size[0], size[1], displayOrientation, mirror);
+    }
+
+    @Benchmark
+    public int cropCircle() {
+        return cropper.crop(nv21, cropped);
+    }
+
+    @Benchmark
+    public FrameQualityAnalyzer.Score analyzeQuality() {
+        timestampNs += FRAME_INTERVAL_NS;
+        return analyzer.analyze(nv21, timestampNs);
+    }
+
+    @Benchmark
+    public boolean detectStability() {
+        timestampNs += FRAME_INTERVAL_NS;
+        return stabilityDetector.update(nv21, timestampNs);
+    }
+
+    /**
+     * 缓存已满后每帧替换最旧的一帧，包含一次裁剪
+     */
+    @Benchmark
+    public boolean offerToZsl() {
+        timestampNs += FRAME_INTERVAL_NS;
+        return zslBuffer.offer(nv21, timestampNs, 1);
+    }
+}
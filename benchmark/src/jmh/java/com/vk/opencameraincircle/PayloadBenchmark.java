@@ -0,0 +1,132 @@
+package com.vk.opencameraincircle;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * 拍照后生成上传数据的步骤。Bitmap的缩放和压缩在JVM上没有实现，这里用java.awt和ImageIO的对应操作作为参照，
+ * 只用于比较同一台机器上不同改动的相对变化；Base64与ImageUtil一样以76列换行的流式编码
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PayloadBenchmark {
+    /**
+     * 1200为上传图片的长边，其余为常见的拍照尺寸
+     */
+    @Param({"1200x900", "1920x1440", "4000x3000"})
+    public String captureSize;
+
+    private BufferedImage image;
+    private int[] argb;
+    private int[] payloadArgb;
+    private AreaDownscaler serialDownscaler;
+    private AreaDownscaler parallelDownscaler;
+    private byte[] jpeg;
+    private ImageWriter jpegWriter;
+    private ImageWriteParam jpegParam;
+
+    @Setup
+    public void setUp() throws IOException {
+        int[] size = BenchmarkImages.parseSize(captureSize);
+        image = new BufferedImage(size[0], size[1], BufferedImage.TYPE_INT_RGB);
+        argb = BenchmarkImages.argb(size[0], size[1], 2);
+        image.setRGB(0, 0, size[0], size[1], argb, 0, size[0]);
+        payloadArgb = new int[1200 * 1200];
+        serialDownscaler = new AreaDownscaler(ForkJoinPool.commonPool(), Integer.MAX_VALUE);
+        parallelDownscaler = new AreaDownscaler(ForkJoinPool.commonPool(), 1);
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+        jpegWriter = writers.next();
+        jpegParam = jpegWriter.getDefaultWriteParam();
+        jpegParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        jpegParam.setCompressionQuality(0.9f);
+        jpeg = encodeJpeg();
+    }
+
+    /**
+     * 缩放到上传尺寸，对应开启过滤的Bitmap缩放
+     */
+    @Benchmark
+    public BufferedImage scaleToPayload() {
+        int width = 1200;
+        int height = image.getHeight() * width / image.getWidth();
+        BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = scaled.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        graphics.drawImage(image, 0, 0, width, height, null);
+        graphics.dispose();
+        return scaled;
+    }
+
+    /**
+     * 用面积平均缩放到上传尺寸，对应ImageUtil.scaleToFit，在调用线程中计算
+     */
+    @Benchmark
+    public int[] areaScaleToPayloadSerial() {
+        return areaScale(serialDownscaler);
+    }
+
+    @Benchmark
+    public int[] areaScaleToPayloadParallel() {
+        return areaScale(parallelDownscaler);
+    }
+
+    private int[] areaScale(AreaDownscaler downscaler) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        downscaler.scale(argb, width, height, payloadArgb, 1200, height * 1200 / width);
+        return payloadArgb;
+    }
+
+    @Benchmark
+    public byte[] encodeJpeg() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(image.getWidth() * image.getHeight() / 4);
+        MemoryCacheImageOutputStream stream = new MemoryCacheImageOutputStream(out);
+        jpegWriter.setOutput(stream);
+        jpegWriter.write(null, new IIOImage(image, null, null), jpegParam);
+        stream.close();
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] encodePng() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(image.getWidth() * image.getHeight());
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+
+    /**
+     * 与ImageUtil.convert相同：压缩结果流式写入76列换行的Base64，再转为字符串
+     */
+    @Benchmark
+    public String encodeBase64() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(jpeg.length * 4 / 3 + jpeg.length / 57 + 4);
+        OutputStream base64 = Base64.getMimeEncoder(76, new byte[]{'\n'}).wrap(out);
+        base64.write(jpeg);
+        base64.close();
+        return out.toString("US-ASCII");
+    }
+}